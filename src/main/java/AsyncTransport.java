@@ -0,0 +1,166 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.concurrent.TimeUnit;
+
+// Callback based transport on the default AsynchronousChannelGroup
+public class AsyncTransport implements Transport {
+
+    private AsynchronousServerSocketChannel serverSocketChannel;
+
+    @Override
+    public void listen(int port, EventListeners.ConnectionAcceptedListener listener) throws IOException {
+        serverSocketChannel = AsynchronousServerSocketChannel.open().bind(new InetSocketAddress(port));
+        acceptConnections(listener);
+    }
+
+    private void acceptConnections(EventListeners.ConnectionAcceptedListener listener) {
+        //System.out.println("looking for connection");
+        serverSocketChannel.accept(null, new CompletionHandler<AsynchronousSocketChannel, Void>() {
+
+            @Override
+            public void completed(AsynchronousSocketChannel result, Void attachment) {
+                if (serverSocketChannel == null) return;
+
+                try {
+                    listener.onConnectionAccepted(new AsyncConnection(result));
+                } catch (IOException e) {
+                    System.out.println("Failed to accept connection: " + e.getMessage());
+                }
+
+                serverSocketChannel.accept(null, this);
+            }
+
+            @Override
+            public void failed(Throwable exc, Void attachment) {
+                System.out.println("Failed to accept connection: " + exc.getMessage());
+            }
+        });
+    }
+
+    @Override
+    public void stopListening() throws IOException {
+        if (serverSocketChannel == null) return;
+        serverSocketChannel.close();
+        serverSocketChannel = null;
+    }
+
+    @Override
+    public void connect(Peer peer) {
+        try {
+            AsynchronousSocketChannel channel = AsynchronousSocketChannel.open();
+            //System.out.println("reachable: " + inetSocketAddress.getAddress().isReachable(2000));
+            channel.connect(peer.inetSocketAddress, null, new CompletionHandler<Void, Void>() {
+                @Override
+                public void completed(Void result, Void attachment) {
+                    try {
+                        peer.onConnected(new AsyncConnection(channel));
+                    } catch (IOException e) {
+                        peer.disconnect();
+                    }
+                }
+                @Override
+                public void failed(Throwable exc, Void attachment) {
+                    System.out.println("Connection to " + peer.inetSocketAddress + " failed: " + exc.getMessage());
+                    peer.disconnect();
+                }
+            });
+        } catch (Exception e) {
+            peer.disconnect();
+        }
+    }
+
+    private static class AsyncConnection implements PeerConnection {
+        private final AsynchronousSocketChannel channel;
+        private final InetSocketAddress remoteAddress;
+        private Peer peer;
+
+        AsyncConnection(AsynchronousSocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.remoteAddress = (InetSocketAddress) channel.getRemoteAddress();
+        }
+
+        @Override
+        public InetSocketAddress getRemoteAddress() {
+            return remoteAddress;
+        }
+
+        @Override
+        public void start(Peer peer) {
+            this.peer = peer;
+            read();
+            // Anything queued before start, like the handshake, was held back until the peer was set
+            flush();
+        }
+
+        private void read() {
+            //System.out.println("attempting read");
+            channel.read(peer.getFramer().writable(), null, new CompletionHandler<Integer, Void>() {
+
+                @Override
+                public void completed(Integer result, Void attachment) {
+                    //System.out.println("completed read");
+                    if (result < 0) {
+                        peer.disconnect();
+                        return;
+                    }
+                    peer.getFramer().onRead(result);
+                    peer.handleFrames();
+
+                    if (peer.isDisconnected) return;
+                    read();
+                }
+
+                @Override
+                public void failed(Throwable exc, Void attachment) {
+                    System.out.println("failed to read: " + exc.toString());
+                    peer.disconnect();
+                }
+            });
+        }
+
+        // Start a gathering write of queued messages unless one is already in flight
+        @Override
+        public void flush() {
+            if (peer == null) return;
+
+            OutboundQueue outbound = peer.getOutbound();
+            ByteBuffer[] batch = outbound.nextBatch();
+            if (batch == null) return;
+
+            try {
+                channel.write(batch, 0, batch.length, 0, TimeUnit.MILLISECONDS, null, new CompletionHandler<Long, Void>() {
+
+                    @Override
+                    public void completed(Long result, Void attachment) {
+                        //System.out.println("bytes sent");
+                        outbound.complete(result);
+                        flush();
+                    }
+
+                    @Override
+                    public void failed(Throwable exc, Void attachment) {
+                        System.out.println("Failed to send bytes: " + exc.getMessage());
+                        peer.disconnect();
+                    }
+                });
+            } catch (Exception e) {
+                peer.disconnect();
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                if (channel.isOpen()) {
+                    channel.close();
+                }
+            } catch (IOException e) {
+                System.out.println("Client wasn't open");
+            }
+        }
+    }
+}
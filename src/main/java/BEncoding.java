@@ -1,137 +1,210 @@
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 
 public class BEncoding {
 
-    private static final byte DICT_START = "d".getBytes(StandardCharsets.UTF_8)[0];
-    private static final byte LIST_START = "l".getBytes(StandardCharsets.UTF_8)[0];
-    private static final byte NUM_START = "i".getBytes(StandardCharsets.UTF_8)[0];
-    private static final byte END = "e".getBytes(StandardCharsets.UTF_8)[0];
-    private static final byte DIVIDER = ":".getBytes(StandardCharsets.UTF_8)[0];
+    static final byte DICT_START = "d".getBytes(StandardCharsets.UTF_8)[0];
+    static final byte LIST_START = "l".getBytes(StandardCharsets.UTF_8)[0];
+    static final byte NUM_START = "i".getBytes(StandardCharsets.UTF_8)[0];
+    static final byte END = "e".getBytes(StandardCharsets.UTF_8)[0];
+    static final byte DIVIDER = ":".getBytes(StandardCharsets.UTF_8)[0];
+
+    // Keys are sorted as raw byte strings, compared unsigned
+    private static final Comparator<String> KEY_ORDER = BEncoding::compareKeys;
+
+    // UTF-8 bytes sort in code point order, so keys can be compared without encoding them
+    private static int compareKeys(String a, String b) {
+        int i = 0;
+        int j = 0;
+        while (i < a.length() && j < b.length()) {
+            int x = a.codePointAt(i);
+            int y = b.codePointAt(j);
+            if (x != y) return Integer.compare(x, y);
+            i += Character.charCount(x);
+            j += Character.charCount(y);
+        }
+        return Integer.compare(a.length() - i, b.length() - j);
+    }
 
 
     //--------------------DECODING---------------------
 
 
-    // Read file into byte array then convert to list for iterator
+    // Bounds applied while decoding, so untrusted input can't exhaust the stack or heap
+    public static class Limits {
+        public final int maxDepth;
+        public final int maxStringLength;
+        public final int maxItems;
+
+        public Limits(int maxDepth, int maxStringLength, int maxItems) {
+            this.maxDepth = maxDepth;
+            this.maxStringLength = maxStringLength;
+            this.maxItems = maxItems;
+        }
+    }
+
+    public static final Limits DEFAULT_LIMITS = new Limits(256, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    public static final Limits TRACKER_LIMITS = new Limits(32, 1 << 20, 1 << 16);
+
+    // Map the file and decode straight from the mapped region
     public static Object decodeFile(String path) {
-        byte[] bytes;
-        try {
-            bytes = Files.readAllBytes(Path.of(path));
+        try (FileChannel channel = FileChannel.open(Path.of(path), StandardOpenOption.READ)) {
+            return decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        List<Byte> byteList = new ArrayList<>();
-        for (byte b : bytes) {
-            byteList.add(b);
-        }
-        return decode(byteList);
     }
 
-    public static Object decode(List<Byte> bytes) {
-        Iterator<Byte> iter = bytes.iterator();
-        byte current = iter.next();
-        return decodeNext(current, iter);
+    public static Object decode(byte[] bytes) {
+        return decode(ByteBuffer.wrap(bytes), DEFAULT_LIMITS);
     }
 
-    // Identify next object to decode and call relevant method
-    private static Object decodeNext(byte current, Iterator<Byte> iter) {
-        if (current == DICT_START) return decodeDict(iter);
-        if (current == LIST_START) return decodeList(iter);
-        if (current == NUM_START) return decodeNum(iter);
-        return decodeByteArray(current, iter);
+    public static Object decode(byte[] bytes, Limits limits) {
+        return decode(ByteBuffer.wrap(bytes), limits);
     }
 
-    private static long decodeNum(Iterator<Byte> iter) {
-        List<Byte> byteList = new ArrayList<>();
+    public static Object decode(ByteBuffer bytes) {
+        return decode(bytes, DEFAULT_LIMITS);
+    }
 
-        // Step through iterator to create number as list
-        while (iter.hasNext()) {
-            byte current = iter.next();
-            if (current == END) break;
-            byteList.add(current);
-        }
+    // Decodes from the buffer's position to its limit, the buffer itself is left untouched
+    public static Object decode(ByteBuffer bytes, Limits limits) {
+        return new Decoder(bytes, limits).decodeNext();
+    }
 
-        // Convert list to string
-        String numString = new String(byteListToArray(byteList), StandardCharsets.UTF_8);
+    // Walks the input with an index into the buffer instead of copying or boxing it
+    private static class Decoder {
+        private final ByteBuffer bytes;
+        private final Limits limits;
+        private final int end;
+        private int pos;
+        private int depth = 0;
+        private int items = 0;
+
+        Decoder(ByteBuffer bytes, Limits limits) {
+            this.bytes = bytes;
+            this.limits = limits;
+            this.pos = bytes.position();
+            this.end = bytes.limit();
+        }
 
-        return Long.parseLong(numString);
-    }
+        private byte next() {
+            if (pos >= end) throw new RuntimeException("Unexpected end of data at " + pos);
+            return bytes.get(pos++);
+        }
 
-    private static byte[] byteListToArray(List<Byte> byteList) {
-        byte[] byteArray = new byte[byteList.size()];
-        for (int i = 0; i < byteList.size(); i++) {
-            byteArray[i] = byteList.get(i);
+        private byte peek() {
+            if (pos >= end) throw new RuntimeException("Unexpected end of data at " + pos);
+            return bytes.get(pos);
         }
-        return byteArray;
-    }
 
-    // Represented by the length of the byte array, followed by a separator then the content itself
-    private static byte[] decodeByteArray(byte current, Iterator<Byte> iter) {
-        List<Byte> lengthList = new ArrayList<>();
+        // Identify next object to decode and call relevant method
+        Object decodeNext() {
+            if (++items > limits.maxItems) throw new RuntimeException("Too many items");
 
-        // Read bytes into list up to divider
-        lengthList.add(current);
-        while (iter.hasNext()) {
-            current = iter.next();
-            if (current == DIVIDER) break;
-            lengthList.add(current);
+            byte current = peek();
+            if (current == DICT_START) return decodeDict();
+            if (current == LIST_START) return decodeList();
+            if (current == NUM_START) return decodeNum();
+            if (current >= '0' && current <= '9') return decodeByteArray();
+            throw new RuntimeException("Unexpected byte " + current + " at " + pos);
         }
-        // Get the integer representation
-        String lengthString = new String(byteListToArray(lengthList), StandardCharsets.UTF_8);
-        int length = Integer.parseInt(lengthString);
 
-        // Read actual content
-        byte[] bytes = new byte[length];
-        for (int i = 0; i < length; i++) {
-            bytes[i] = iter.next();
+        private long decodeNum() {
+            pos++;
+            return parseLong(END);
         }
-        return bytes;
-    }
 
-    private static List<Object> decodeList(Iterator<Byte> iter) {
-        List<Object> list = new ArrayList<>();
+        // Parse ASCII digits up to the terminator without building an intermediate string.
+        // Only numbers take a sign, and empty numbers, leading zeros and -0 are all invalid
+        private long parseLong(byte terminator) {
+            int start = pos;
+            boolean negative = terminator == END && peek() == '-';
+            if (negative) pos++;
+
+            long value = 0;
+            int digits = 0;
+            byte current;
+            while ((current = next()) != terminator) {
+                if (current < '0' || current > '9') {
+                    throw new RuntimeException("Invalid digit " + current + " at " + (pos - 1));
+                }
+                if (digits == 1 && value == 0) throw new RuntimeException("Leading zero at " + start);
+                value = Math.addExact(Math.multiplyExact(value, 10), current - '0');
+                digits++;
+            }
+            if (digits == 0) throw new RuntimeException("Empty number at " + pos);
+            if (negative && value == 0) throw new RuntimeException("Negative zero at " + start);
+
+            return negative ? -value : value;
+        }
 
-        while (iter.hasNext()) {
-            byte current = iter.next();
-            if (current == END) break;
-            list.add(decodeNext(current, iter));
+        // Represented by the length of the byte array, followed by a separator then the content itself
+        private byte[] decodeByteArray() {
+            long length = parseLong(DIVIDER);
+            if (length < 0 || length > limits.maxStringLength || length > end - pos) {
+                throw new RuntimeException("Invalid byte array length " + length + " at " + pos);
+            }
+
+            byte[] content = new byte[(int) length];
+            bytes.get(pos, content);
+            pos += content.length;
+            return content;
         }
 
-        return list;
-    }
+        private List<Object> decodeList() {
+            pos++;
+            enter();
+            List<Object> list = new ArrayList<>();
 
-    // Uses TreeMap with custom comparator to sort by byte representation of keys
-    private static TreeMap<String, Object> decodeDict(Iterator<Byte> iter) {
-        TreeMap<String, Object> dict = new TreeMap<>(
-                Comparator.comparing(key -> Arrays.toString(key.getBytes(StandardCharsets.UTF_8)))
-        );
+            while (peek() != END) {
+                list.add(decodeNext());
+            }
+            pos++;
+
+            depth--;
+            return list;
+        }
 
-        while (iter.hasNext()) {
-            byte current = iter.next();
-            if (current == END) break;
+        private TreeMap<String, Object> decodeDict() {
+            pos++;
+            enter();
+            TreeMap<String, Object> dict = new TreeMap<>(KEY_ORDER);
 
-            String key = new String(decodeByteArray(current, iter), StandardCharsets.UTF_8);
-            current = iter.next();
-            Object val = decodeNext(current, iter);
+            while (peek() != END) {
+                String key = new String(decodeByteArray(), StandardCharsets.UTF_8);
+                dict.put(key, decodeNext());
+            }
+            pos++;
 
-            dict.put(key, val);
+            depth--;
+            return dict;
         }
 
-        return dict;
+        private void enter() {
+            if (++depth > limits.maxDepth) throw new RuntimeException("Nesting too deep at " + pos);
+        }
     }
 
 
     //----------------------ENCODING------------------------
 
 
+    // Streams straight to the file rather than building the whole output in memory first
     public static void encodeFile(Object obj, String path) {
-        try {
-            Files.write(Path.of(path), encode(obj));
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(Path.of(path)), WRITE_BUFFER_SIZE)) {
+            encode(obj, out);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -143,50 +216,78 @@ public class BEncoding {
         return buffer.toByteArray();
     }
 
+    public static void encode(Object obj, OutputStream out) throws Exception {
+        encodeNext(out, obj);
+    }
+
+    public static void encode(Object obj, WritableByteChannel channel) throws Exception {
+        OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), WRITE_BUFFER_SIZE);
+        encodeNext(out, obj);
+        out.flush();
+    }
+
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
     @SuppressWarnings("unchecked")
-    private static void encodeNext(ByteArrayOutputStream buffer, Object obj) throws Exception {
-        if (obj instanceof byte[]) encodeByteArray(buffer, (byte[])obj);
-        else if (obj instanceof String) encodeString(buffer, (String)obj);
-        else if (obj instanceof Long) encodeNum(buffer, (Long)obj);
-        else if (obj instanceof List<?>) encodeList(buffer, (List<Object>) obj);
-        else if (obj instanceof Map<?,?>) encodeDict(buffer, (Map<String, Object>) obj);
+    private static void encodeNext(OutputStream out, Object obj) throws Exception {
+        if (obj instanceof byte[]) encodeByteArray(out, (byte[])obj);
+        else if (obj instanceof String) encodeString(out, (String)obj);
+        else if (obj instanceof Long) encodeNum(out, (Long)obj);
+        else if (obj instanceof List<?>) encodeList(out, (List<Object>) obj);
+        else if (obj instanceof Map<?,?>) encodeDict(out, (Map<String, Object>) obj);
         else throw new Exception("Unable to encode type " + obj.getClass());
 
     }
 
-    private static void encodeNum(ByteArrayOutputStream buffer, long num) throws IOException {
-        buffer.write(NUM_START);
-        buffer.write(Long.toString(num).getBytes(StandardCharsets.UTF_8));
-        buffer.write(END);
+    private static void encodeNum(OutputStream out, long num) throws IOException {
+        out.write(NUM_START);
+        out.write(Long.toString(num).getBytes(StandardCharsets.US_ASCII));
+        out.write(END);
     }
 
-    private static void encodeByteArray(ByteArrayOutputStream buffer, byte[] bytes) throws IOException {
-        buffer.write(new String(bytes, StandardCharsets.UTF_8).length());
-        buffer.write(DIVIDER);
-        buffer.write(bytes);
+    private static void encodeByteArray(OutputStream out, byte[] bytes) throws IOException {
+        out.write(Integer.toString(bytes.length).getBytes(StandardCharsets.US_ASCII));
+        out.write(DIVIDER);
+        out.write(bytes);
     }
 
-    private static void encodeString(ByteArrayOutputStream buffer, String str) throws IOException {
-        encodeByteArray(buffer, str.getBytes(StandardCharsets.UTF_8));
+    private static void encodeString(OutputStream out, String str) throws IOException {
+        encodeByteArray(out, str.getBytes(StandardCharsets.UTF_8));
     }
 
-    private static void encodeList(ByteArrayOutputStream buffer, List<Object> list) throws Exception {
-        buffer.write(LIST_START);
-        for (Object item : list) encodeNext(buffer, item);
-        buffer.write(END);
+    private static void encodeList(OutputStream out, List<Object> list) throws Exception {
+        out.write(LIST_START);
+        for (Object item : list) encodeNext(out, item);
+        out.write(END);
     }
 
-    private static void encodeDict(ByteArrayOutputStream buffer, Map<String, Object> dict) throws Exception {
-        TreeMap<String, Object> sortedDict = new TreeMap<>(
-                Comparator.comparing(key -> Arrays.toString(key.getBytes(StandardCharsets.UTF_8)))
-        );
-        sortedDict.putAll(dict);
+    private static void encodeDict(OutputStream out, Map<String, Object> dict) throws Exception {
+        // Convert each key once and sort on the raw bytes, unless the map is already in that order
+        int size = dict.size();
+        byte[][] keys = new byte[size][];
+        Object[] values = new Object[size];
+        int i = 0;
+        for (Map.Entry<String, Object> entry : dict.entrySet()) {
+            keys[i] = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            values[i] = entry.getValue();
+            i++;
+        }
 
-        buffer.write(DICT_START);
-        for (String key : sortedDict.keySet()) {
-            encodeString(buffer, key);
-            encodeNext(buffer, sortedDict.get(key));
+        Integer[] order = new Integer[size];
+        for (i = 0; i < size; i++) order[i] = i;
+        if (!isKeyOrdered(dict)) {
+            Arrays.sort(order, (a, b) -> Arrays.compareUnsigned(keys[a], keys[b]));
         }
-        buffer.write(END);
+
+        out.write(DICT_START);
+        for (int index : order) {
+            encodeByteArray(out, keys[index]);
+            encodeNext(out, values[index]);
+        }
+        out.write(END);
+    }
+
+    private static boolean isKeyOrdered(Map<String, Object> dict) {
+        return dict instanceof SortedMap<?, ?> && ((SortedMap<?, ?>) dict).comparator() == KEY_ORDER;
     }
-}
\ No newline at end of file
+}
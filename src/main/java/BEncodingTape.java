@@ -0,0 +1,253 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+Index over a bencoded buffer recording where every value starts and ends.
+Nothing is decoded up front, values are only materialized when accessed, and
+the original bytes of any value (e.g. the info dictionary) can be sliced out as-is.
+ */
+public class BEncodingTape {
+
+    public enum Type {
+        dict,
+        list,
+        num,
+        bytes
+    }
+
+    private static final Type[] TYPES = Type.values();
+
+    private final ByteBuffer bytes;
+    private final BEncoding.Limits limits;
+
+    // One entry per value in document order, containers are followed by their children
+    private byte[] types = new byte[64];
+    private int[] starts = new int[64];
+    private int[] contentStarts = new int[64];
+    private int[] ends = new int[64];
+    // Index of the entry after this value and all of its children
+    private int[] skips = new int[64];
+    private int count = 0;
+
+    private int pos;
+    private int depth = 0;
+
+    public BEncodingTape(byte[] bytes) {
+        this(ByteBuffer.wrap(bytes), BEncoding.DEFAULT_LIMITS);
+    }
+
+    public BEncodingTape(ByteBuffer bytes) {
+        this(bytes, BEncoding.DEFAULT_LIMITS);
+    }
+
+    public BEncodingTape(ByteBuffer bytes, BEncoding.Limits limits) {
+        this.bytes = bytes;
+        this.limits = limits;
+        this.pos = bytes.position();
+        index();
+    }
+
+    public Node root() {
+        return new Node(0);
+    }
+
+    public int size() {
+        return count;
+    }
+
+    //--------------------INDEXING---------------------
+
+    private void index() {
+        if (++count > limits.maxItems) throw new RuntimeException("Too many items");
+        int entry = count - 1;
+        ensureCapacity(count);
+
+        int start = pos;
+        byte current = peek();
+        Type type;
+        int contentStart = start;
+
+        if (current == BEncoding.DICT_START || current == BEncoding.LIST_START) {
+            type = current == BEncoding.DICT_START ? Type.dict : Type.list;
+            pos++;
+            if (++depth > limits.maxDepth) throw new RuntimeException("Nesting too deep at " + pos);
+            int children = 0;
+            while (peek() != BEncoding.END) {
+                // Dictionary keys must be byte strings
+                if (type == Type.dict && children % 2 == 0 && !isDigit(peek())) {
+                    throw new RuntimeException("Invalid dictionary key at " + pos);
+                }
+                index();
+                children++;
+            }
+            if (type == Type.dict && children % 2 != 0) {
+                throw new RuntimeException("Dictionary key without value at " + pos);
+            }
+            pos++;
+            depth--;
+        } else if (current == BEncoding.NUM_START) {
+            type = Type.num;
+            pos++;
+            contentStart = pos;
+            skipDigits(BEncoding.END);
+        } else if (isDigit(current)) {
+            type = Type.bytes;
+            long length = skipDigits(BEncoding.DIVIDER);
+            if (length > limits.maxStringLength || length > bytes.limit() - pos) {
+                throw new RuntimeException("Invalid byte array length " + length + " at " + pos);
+            }
+            contentStart = pos;
+            pos += (int) length;
+        } else {
+            throw new RuntimeException("Unexpected byte " + current + " at " + pos);
+        }
+
+        types[entry] = (byte) type.ordinal();
+        starts[entry] = start;
+        contentStarts[entry] = contentStart;
+        ends[entry] = pos;
+        skips[entry] = count;
+    }
+
+    // Same rules as the decoder in BEncoding: only numbers take a sign, and no empty numbers, leading zeros or -0
+    private long skipDigits(byte terminator) {
+        int start = pos;
+        boolean negative = terminator == BEncoding.END && peek() == '-';
+        if (negative) pos++;
+
+        long value = 0;
+        int digits = 0;
+        byte current;
+        while ((current = next()) != terminator) {
+            if (!isDigit(current)) throw new RuntimeException("Invalid digit " + current + " at " + (pos - 1));
+            if (digits == 1 && value == 0) throw new RuntimeException("Leading zero at " + start);
+            value = Math.addExact(Math.multiplyExact(value, 10), current - '0');
+            digits++;
+        }
+        if (digits == 0) throw new RuntimeException("Empty number at " + pos);
+        if (negative && value == 0) throw new RuntimeException("Negative zero at " + start);
+
+        return negative ? -value : value;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private byte next() {
+        if (pos >= bytes.limit()) throw new RuntimeException("Unexpected end of data at " + pos);
+        return bytes.get(pos++);
+    }
+
+    private byte peek() {
+        if (pos >= bytes.limit()) throw new RuntimeException("Unexpected end of data at " + pos);
+        return bytes.get(pos);
+    }
+
+    private void ensureCapacity(int size) {
+        if (size <= types.length) return;
+        int capacity = Math.max(size, types.length * 2);
+        types = Arrays.copyOf(types, capacity);
+        starts = Arrays.copyOf(starts, capacity);
+        contentStarts = Arrays.copyOf(contentStarts, capacity);
+        ends = Arrays.copyOf(ends, capacity);
+        skips = Arrays.copyOf(skips, capacity);
+    }
+
+    //--------------------ACCESSING---------------------
+
+    // Lightweight handle to a single value on the tape
+    public class Node {
+        private final int entry;
+
+        private Node(int entry) {
+            this.entry = entry;
+        }
+
+        public Type getType() {
+            return TYPES[types[entry]];
+        }
+
+        // The exact original bytes of this value, including its type prefix and terminator
+        public ByteBuffer raw() {
+            return bytes.slice(starts[entry], ends[entry] - starts[entry]);
+        }
+
+        // Content of a byte string without copying
+        public ByteBuffer content() {
+            expect(Type.bytes);
+            return bytes.slice(contentStarts[entry], ends[entry] - contentStarts[entry]);
+        }
+
+        public byte[] asBytes() {
+            expect(Type.bytes);
+            byte[] content = new byte[ends[entry] - contentStarts[entry]];
+            bytes.get(contentStarts[entry], content);
+            return content;
+        }
+
+        public String asString() {
+            return new String(asBytes(), StandardCharsets.UTF_8);
+        }
+
+        public long asLong() {
+            expect(Type.num);
+            int i = contentStarts[entry];
+            boolean negative = bytes.get(i) == '-';
+            if (negative) i++;
+            long value = 0;
+            for (; i < ends[entry] - 1; i++) {
+                value = value * 10 + (bytes.get(i) - '0');
+            }
+            return negative ? -value : value;
+        }
+
+        public boolean containsKey(String key) {
+            return get(key) != null;
+        }
+
+        // Linear scan over the keys, comparing against the raw key bytes
+        public Node get(String key) {
+            expect(Type.dict);
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+
+            int child = entry + 1;
+            while (child < skips[entry]) {
+                int value = skips[child];
+                if (keyEquals(child, keyBytes)) return new Node(value);
+                child = skips[value];
+            }
+            return null;
+        }
+
+        public List<Node> list() {
+            expect(Type.list);
+            List<Node> items = new ArrayList<>();
+            for (int child = entry + 1; child < skips[entry]; child = skips[child]) {
+                items.add(new Node(child));
+            }
+            return items;
+        }
+
+        // Fully decode this value into the same object model as BEncoding.decode
+        public Object materialize() {
+            return BEncoding.decode(raw(), limits);
+        }
+
+        private boolean keyEquals(int keyEntry, byte[] key) {
+            int start = contentStarts[keyEntry];
+            if (ends[keyEntry] - start != key.length) return false;
+            for (int i = 0; i < key.length; i++) {
+                if (bytes.get(start + i) != key[i]) return false;
+            }
+            return true;
+        }
+
+        private void expect(Type type) {
+            if (getType() != type) throw new RuntimeException("Expected " + type + " but found " + getType());
+        }
+    }
+}
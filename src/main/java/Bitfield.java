@@ -0,0 +1,207 @@
+import java.nio.ByteBuffer;
+
+/*
+Fixed size set of bits packed into longs, keeping a running count of the bits that are set
+so counting and completeness checks don't have to scan.
+Converts to and from the wire format of the bitfield message, where the first piece is
+the highest bit of the first byte.
+Writers are synchronized so the count stays exact, reads of single bits are not.
+ */
+public class Bitfield {
+    private final long[] words;
+    private final int size;
+    private int count = 0;
+
+    public Bitfield(int size) {
+        this.size = size;
+        words = new long[(size + 63) >>> 6];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public synchronized int count() {
+        return count;
+    }
+
+    public boolean isAll() {
+        return count() == size;
+    }
+
+    public boolean isEmpty() {
+        return count() == 0;
+    }
+
+    public boolean get(int index) {
+        return (words[index >>> 6] & (1L << index)) != 0;
+    }
+
+    // Returns true if the bit changed
+    public synchronized boolean set(int index) {
+        long mask = 1L << index;
+        if ((words[index >>> 6] & mask) != 0) return false;
+        words[index >>> 6] |= mask;
+        count++;
+        return true;
+    }
+
+    // Returns true if the bit changed
+    public synchronized boolean clear(int index) {
+        long mask = 1L << index;
+        if ((words[index >>> 6] & mask) == 0) return false;
+        words[index >>> 6] &= ~mask;
+        count--;
+        return true;
+    }
+
+    public void set(int index, boolean value) {
+        if (value) set(index);
+        else clear(index);
+    }
+
+    // Sets every bit from start up to end
+    public synchronized void set(int start, int end) {
+        for (int i = start; i < end; i++) {
+            long mask = 1L << i;
+            if ((words[i >>> 6] & mask) == 0) {
+                words[i >>> 6] |= mask;
+                count++;
+            }
+        }
+    }
+
+    // Clears every bit from start up to end
+    public synchronized void clear(int start, int end) {
+        for (int i = start; i < end; i++) {
+            long mask = 1L << i;
+            if ((words[i >>> 6] & mask) != 0) {
+                words[i >>> 6] &= ~mask;
+                count--;
+            }
+        }
+    }
+
+    // Number of bits set from start up to end
+    public synchronized int count(int start, int end) {
+        if (start >= end) return 0;
+
+        int first = start >>> 6;
+        int last = (end - 1) >>> 6;
+        long firstMask = -1L << start;
+        long lastMask = -1L >>> (63 - ((end - 1) & 63));
+
+        if (first == last) return Long.bitCount(words[first] & firstMask & lastMask);
+
+        int total = Long.bitCount(words[first] & firstMask);
+        for (int i = first + 1; i < last; i++) {
+            total += Long.bitCount(words[i]);
+        }
+        return total + Long.bitCount(words[last] & lastMask);
+    }
+
+    // Number of bits set here that aren't set in other
+    public synchronized int countAndNot(Bitfield other) {
+        int total = 0;
+        for (int i = 0; i < words.length; i++) {
+            total += Long.bitCount(words[i] & ~other.words[i]);
+        }
+        return total;
+    }
+
+    // Index of the first set bit at or after from, or -1
+    public int nextSet(int from) {
+        if (from >= size) return -1;
+        int i = from >>> 6;
+        long word = words[i] & (-1L << from);
+        while (true) {
+            if (word != 0) {
+                int index = (i << 6) + Long.numberOfTrailingZeros(word);
+                return index < size ? index : -1;
+            }
+            if (++i == words.length) return -1;
+            word = words[i];
+        }
+    }
+
+    // Index of the first clear bit at or after from, or -1
+    public int nextClear(int from) {
+        if (from >= size) return -1;
+        int i = from >>> 6;
+        long word = ~words[i] & (-1L << from);
+        while (true) {
+            if (word != 0) {
+                int index = (i << 6) + Long.numberOfTrailingZeros(word);
+                return index < size ? index : -1;
+            }
+            if (++i == words.length) return -1;
+            word = ~words[i];
+        }
+    }
+
+    // Sets every bit that's set in other
+    public synchronized void or(Bitfield other) {
+        count = 0;
+        for (int i = 0; i < words.length; i++) {
+            words[i] |= other.words[i];
+            count += Long.bitCount(words[i]);
+        }
+    }
+
+    //----------------------------------------------------
+    //                    WIRE FORMAT
+    //----------------------------------------------------
+
+    public int getByteLength() {
+        return (size + 7) >>> 3;
+    }
+
+    // Writes the bits in message order at the buffer's position, spare bits in the last byte are zero
+    public synchronized void writeBytes(ByteBuffer dst) {
+        int length = getByteLength();
+        for (int i = 0; i < length; i++) {
+            // Each byte holds eight bits of a word, reversed so the lowest index is the highest bit
+            long bits = words[i >>> 3] >>> ((i & 7) << 3);
+            dst.put((byte) (Integer.reverse((int) bits & 0xFF) >>> 24));
+        }
+    }
+
+    public byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(getByteLength());
+        writeBytes(buffer);
+        return buffer.array();
+    }
+
+    // Reads the bits in message order from offset, any spare bits past size are ignored
+    public static Bitfield fromBytes(ByteBuffer src, int offset, int size) {
+        Bitfield bitfield = new Bitfield(size);
+        int length = bitfield.getByteLength();
+        for (int i = 0; i < length; i++) {
+            long bits = Integer.reverse(src.get(offset + i) & 0xFF) >>> 24;
+            bitfield.words[i >>> 3] |= bits << ((i & 7) << 3);
+        }
+
+        // Peers aren't meant to set the spare bits, but don't let them count if they do
+        int spare = size & 63;
+        if (spare != 0) bitfield.words[bitfield.words.length - 1] &= -1L >>> (64 - spare);
+
+        for (long word : bitfield.words) {
+            bitfield.count += Long.bitCount(word);
+        }
+        return bitfield;
+    }
+
+    public static Bitfield fromBytes(byte[] bytes, int size) {
+        return fromBytes(ByteBuffer.wrap(bytes), 0, size);
+    }
+
+    // Bits as 1s and 0s, for logging
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder(size);
+        for (int i = 0; i < size; i++) {
+            sb.append(get(i) ? '1' : '0');
+        }
+        return sb.toString();
+    }
+}
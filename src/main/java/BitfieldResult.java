@@ -1,9 +1,9 @@
 public class BitfieldResult {
     boolean success;
-    public boolean[] isPieceDownloaded;
+    public Bitfield pieces;
 
-    public BitfieldResult(boolean success, boolean[] isPieceDownloaded) {
+    public BitfieldResult(boolean success, Bitfield pieces) {
         this.success = success;
-        this.isPieceDownloaded = isPieceDownloaded;
+        this.pieces = pieces;
     }
 }
@@ -0,0 +1,80 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+Bounded pool of reusable block-sized buffers for piece payloads.
+Buffers are acquired when a block is received or copied for hashing, and must be
+released once the block has been written to disk or hashed.
+ */
+public class BlockPool {
+    public static final int DEFAULT_MAX_POOLED = 1024;
+
+    private final int blockSize;
+    private final int maxPooled;
+    private final boolean isDirect;
+
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger(0);
+
+    private final AtomicLong allocated = new AtomicLong(0);
+    private final AtomicLong reused = new AtomicLong(0);
+
+    public BlockPool(int blockSize, int maxPooled, boolean isDirect) {
+        this.blockSize = blockSize;
+        this.maxPooled = maxPooled;
+        this.isDirect = isDirect;
+    }
+
+    // Buffer with its limit set to length, larger requests than a block aren't pooled
+    public ByteBuffer acquire(int length) {
+        if (length > blockSize) {
+            allocated.incrementAndGet();
+            return allocate(length);
+        }
+
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            allocated.incrementAndGet();
+            buffer = allocate(blockSize);
+        } else {
+            pooled.decrementAndGet();
+            reused.incrementAndGet();
+        }
+
+        buffer.clear().limit(length);
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != blockSize || buffer.isDirect() != isDirect) return;
+
+        // Let the garbage collector have anything over the limit
+        if (pooled.incrementAndGet() > maxPooled) {
+            pooled.decrementAndGet();
+            return;
+        }
+        free.offer(buffer);
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return isDirect ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getPooledCount() {
+        return pooled.get();
+    }
+
+    public long getAllocatedCount() {
+        return allocated.get();
+    }
+
+    public long getReusedCount() {
+        return reused.get();
+    }
+}
@@ -0,0 +1,154 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+Transport that runs each connection as plain blocking read and write loops, one thread each.
+Every loop gets its own virtual thread, or with Settings.blockingThreads set to "platform"
+a thread from a cached pool of platform threads, so the two can be compared.
+ */
+public class BlockingTransport implements Transport {
+
+    private final ExecutorService executor;
+    private ServerSocketChannel serverSocketChannel;
+
+    public BlockingTransport(String threads) {
+        executor = createExecutor(threads);
+    }
+
+    private static ExecutorService createExecutor(String threads) {
+        return switch (threads) {
+            case "virtual" -> Executors.newVirtualThreadPerTaskExecutor();
+            case "platform" -> {
+                System.out.println("Blocking transport using platform threads");
+                yield Executors.newCachedThreadPool(runnable -> {
+                    Thread thread = new Thread(runnable);
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            default -> throw new IllegalArgumentException("Unknown blocking threads " + threads);
+        };
+    }
+
+    @Override
+    public void listen(int port, EventListeners.ConnectionAcceptedListener listener) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        serverSocketChannel = server;
+
+        executor.execute(() -> {
+            while (server.isOpen()) {
+                try {
+                    SocketChannel channel = server.accept();
+                    listener.onConnectionAccepted(new BlockingConnection(channel));
+                } catch (IOException e) {
+                    if (server.isOpen()) System.out.println("Failed to accept connection: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    @Override
+    public void stopListening() throws IOException {
+        if (serverSocketChannel == null) return;
+        serverSocketChannel.close();
+        serverSocketChannel = null;
+    }
+
+    @Override
+    public void connect(Peer peer) {
+        executor.execute(() -> {
+            try {
+                SocketChannel channel = SocketChannel.open(peer.inetSocketAddress);
+                peer.onConnected(new BlockingConnection(channel));
+            } catch (IOException e) {
+                System.out.println("Connection to " + peer.inetSocketAddress + " failed: " + e.getMessage());
+                peer.disconnect();
+            }
+        });
+    }
+
+    private class BlockingConnection implements PeerConnection {
+        private final SocketChannel channel;
+        private final InetSocketAddress remoteAddress;
+        private volatile Peer peer;
+        private volatile Thread writer;
+
+        BlockingConnection(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.remoteAddress = (InetSocketAddress) channel.getRemoteAddress();
+        }
+
+        @Override
+        public InetSocketAddress getRemoteAddress() {
+            return remoteAddress;
+        }
+
+        @Override
+        public void start(Peer peer) {
+            this.peer = peer;
+            executor.execute(this::readLoop);
+            executor.execute(this::writeLoop);
+        }
+
+        private void readLoop() {
+            MessageFramer framer = peer.getFramer();
+            try {
+                while (!peer.isDisconnected) {
+                    int read = channel.read(framer.writable());
+                    if (read < 0) break;
+                    framer.onRead(read);
+                    peer.handleFrames();
+                }
+            } catch (IOException e) {
+                if (!peer.isDisconnected) System.out.println("failed to read: " + e);
+            }
+            peer.disconnect();
+        }
+
+        // Sleeps until flush() wakes it, then writes everything queued
+        private void writeLoop() {
+            writer = Thread.currentThread();
+            OutboundQueue outbound = peer.getOutbound();
+            try {
+                while (!peer.isDisconnected) {
+                    ByteBuffer[] batch = outbound.nextBatch();
+                    if (batch == null) {
+                        LockSupport.park(this);
+                        continue;
+                    }
+                    long written = 0;
+                    while (batch[batch.length - 1].hasRemaining()) {
+                        written += channel.write(batch);
+                    }
+                    outbound.complete(written);
+                }
+            } catch (IOException e) {
+                if (!peer.isDisconnected) System.out.println("Failed to send bytes: " + e.getMessage());
+                peer.disconnect();
+            }
+        }
+
+        @Override
+        public void flush() {
+            Thread thread = writer;
+            if (thread != null) LockSupport.unpark(thread);
+        }
+
+        @Override
+        public void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.out.println("Client wasn't open");
+            }
+            flush();
+        }
+    }
+}
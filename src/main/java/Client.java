@@ -1,23 +1,26 @@
 import java.io.IOException;
 import java.net.*;
-import java.nio.channels.AsynchronousServerSocketChannel;
-import java.nio.channels.AsynchronousSocketChannel;
-import java.nio.channels.CompletionHandler;
+import java.nio.ByteBuffer;
 import java.sql.SQLOutput;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.stream.IntStream;
 
 public class Client {
     public int port;
     public Torrent torrent;
     public String id;
 
+    private final Transport transport;
+    private final Settings settings;
+
     public Client(int port, String torrentPath, String downloadPath) {
+        this(port, torrentPath, downloadPath, new Settings());
+    }
+
+    public Client(int port, String torrentPath, String downloadPath, Settings settings) {
         Random random = new Random();
         StringBuilder strBuilder = new StringBuilder();
         strBuilder.append("BP");
@@ -27,8 +30,14 @@ public class Client {
         id = strBuilder.toString();
 
         this.port = port;
-
-        torrent = Torrent.loadFromFile(torrentPath, downloadPath);
+        this.settings = settings;
+        transport = Transport.create(settings);
+        downloadThrottle = new Throttle(
+                settings.maxDownloadRate > 0 ? settings.maxDownloadRate : Throttle.UNLIMITED,
+                Duration.ofSeconds(1)
+        );
+
+        torrent = Torrent.loadFromFile(torrentPath, downloadPath, settings);
         torrent.setPieceVerifiedListener(this::handlePieceVerified);
         torrent.setPeerListUpdatedListener(this::handlePeerListUpdated);
 
@@ -36,79 +45,54 @@ public class Client {
     }
 
     //----------------------------------
-    //             Threads
+    //            Scheduling
     //----------------------------------
 
-    private boolean isStopping;
-    private final AtomicBoolean isProcessingPeers = new AtomicBoolean(false);
-    private final AtomicBoolean isProcessingUploads = new AtomicBoolean(false);
-    private final AtomicBoolean isProcessingDownloads = new AtomicBoolean(false);
+    // Peer, upload and download work all runs on this thread, queued by the events that need it
+    private final Scheduler scheduler = new Scheduler("client");
+    // Announces block on HTTP, so they get their own thread
+    private final Scheduler trackerScheduler = new Scheduler("tracker");
+
+    private final Scheduler.Task peersTask = scheduler.task(this::processPeers);
+    private final Scheduler.Task uploadsTask = scheduler.task(this::processUploads);
+    private final Scheduler.Task downloadsTask = scheduler.task(this::processDownloads);
+
+    private final Duration trackerInterval = Duration.ofSeconds(10);
+    private final Duration housekeepingInterval = Duration.ofSeconds(1);
 
-    @SuppressWarnings("BusyWait")
     public void start() {
         System.out.println("Starting client");
 
-        isStopping = false;
-
         torrent.resetTrackersLastRequest();
 
         enablePeerConnections();
 
-        // tracker
-        new Thread(() -> {
-            while (!isStopping) {
-                torrent.updateTrackers(Tracker.TrackerEvent.started, id, port);
-                try {
-                    Thread.sleep(10000);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                }
-            }
-        }).start();
-
-        // peer
-        new Thread(() -> {
-            while (!isStopping) {
-                processPeers();
-                try {
-                    Thread.sleep(1000);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                }
-            }
-        }).start();
-
-        // upload
-        new Thread(() -> {
-            while (!isStopping) {
-                processUploads();
-                try {
-                    Thread.sleep(1000);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                }
-            }
-        }).start();
-
-        // download
-        new Thread(() -> {
-            while (!isStopping) {
-                processDownloads();
-                try {
-                    Thread.sleep(1000);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                }
-            }
-        }).start();
+        trackerScheduler.execute(this::updateTrackers);
+        trackerScheduler.every(trackerInterval, this::updateTrackers);
+
+        // Only timeouts need a timer, everything else is started by an event
+        scheduler.every(housekeepingInterval, () -> {
+            processPeerTimeouts();
+            processRequestTimeouts();
+        });
+
+        scheduler.every(Duration.ofSeconds(settings.resumeInterval), () -> {
+            if (torrent.isResumeStale) torrent.saveResumeData();
+        });
+    }
+
+    private void updateTrackers() {
+        torrent.updateTrackers(Tracker.TrackerEvent.started, id, port);
     }
 
     public void stop() {
         System.out.println("Stopping client");
 
-        isStopping = true;
+        trackerScheduler.shutdown();
+        scheduler.shutdown();
         disablePeerConnections();
         torrent.updateTrackers(Tracker.TrackerEvent.stopped, id, port);
+        torrent.close();
     }
 
     public ConcurrentHashMap<String, Peer> peers = new ConcurrentHashMap<>();
@@ -163,47 +147,23 @@ public class Client {
         //System.out.println("Peer count: " + peers.size());
     }
 
-    private AsynchronousServerSocketChannel serverSocketChannel;
-
     public void enablePeerConnections() {
         try {
-            serverSocketChannel = AsynchronousServerSocketChannel.open().bind(new InetSocketAddress(port));
+            transport.listen(port, this::handleConnectionAccepted);
             System.out.println("Listening on port " + port);
-            acceptConnections();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    private void acceptConnections() {
-        //System.out.println("looking for connection");
-        serverSocketChannel.accept(null, new CompletionHandler<AsynchronousSocketChannel, Void>() {
-
-            @Override
-            public void completed(AsynchronousSocketChannel result, Void attachment) {
-                if (serverSocketChannel == null) return;
-
-                try {
-                    System.out.println("Accepted connection from: " + result.getRemoteAddress());
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
-                addPeer(new Peer(torrent, id, result));
-
-                serverSocketChannel.accept(null, this);
-            }
-
-            @Override
-            public void failed(Throwable exc, Void attachment) {
-                System.out.println("Failed to accept connection: " + exc.getMessage());
-            }
-        });
+    private void handleConnectionAccepted(PeerConnection connection) {
+        System.out.println("Accepted connection from: " + connection.getRemoteAddress());
+        addPeer(new Peer(torrent, id, connection));
     }
 
     private void disablePeerConnections() {
         try {
-            serverSocketChannel.close();
-            serverSocketChannel = null;
+            transport.stopListening();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -222,7 +182,7 @@ public class Client {
         peer.setDisconnectedListener(this::handlePeerDisconnected);
         peer.setStateChangedListener(this::handlePeerStateChanged);
 
-        peer.connect();
+        peer.connect(transport);
 
         // Disconnect peer if it is already in the list
         if (peers.putIfAbsent(peer.getKey(), peer) != null) peer.disconnect();
@@ -234,14 +194,17 @@ public class Client {
         peers.remove(peer.getKey());
         seeders.remove(peer.getKey());
         leechers.remove(peer.getKey());
+
+        // Its requests were dropped and may need to go to someone else
+        peersTask.trigger();
     }
 
     private void handlePeerStateChanged() {
-        processPeers();
+        peersTask.trigger();
     }
 
     private void handlePieceVerified(int index) {
-        processPeers();
+        peersTask.trigger();
 
         for (var peer : peers.values()) {
             if (!peer.isHandshakeReceived || !peer.isHandshakeSent) continue;
@@ -254,21 +217,16 @@ public class Client {
     private final int maxLeechers = 5;
     private final int maxSeeders = 5;
     private final int maxUploadBytesPerSec = 16384;
-    private final int maxDownloadBytesPerSec = 16384;
 
     private final Duration peerTimeout = Duration.ofSeconds(30);
+    private final Duration requestTimeout = Duration.ofSeconds(20);
+    // Peers that send nothing for this long while we have requests out only get one at a time
+    private final Duration snubTimeout = Duration.ofSeconds(10);
 
     private void processPeers() {
-        if (!isProcessingPeers.compareAndSet(false, true)) return;
-
         peers.values().stream()
                 .sorted(Comparator.comparingInt(Peer::getPiecesRequiredAvailable).reversed())
                 .forEach(peer -> {
-                    if (Instant.now().isAfter(peer.lastActive.plus(peerTimeout))) {
-                        peer.disconnect();
-                        return;
-                    }
-
                     if (!peer.isHandshakeSent || !peer.isHandshakeReceived) {
                         return;
                     }
@@ -284,8 +242,6 @@ public class Client {
                         return;
                     }
 
-                    peer.sendKeepAlive();
-
                     if (torrent.hasStarted() && leechers.size() < maxLeechers) {
                         if (peer.isInterestedReceived && peer.isChokeSent) {
                             peer.sendUnchoke();
@@ -298,7 +254,21 @@ public class Client {
                         }
                     }
                 });
-        isProcessingPeers.set(false);
+
+        // Seeders may have come or gone
+        downloadsTask.trigger();
+    }
+
+    // Drops peers that have gone quiet and keeps the others from doing the same to us
+    private void processPeerTimeouts() {
+        for (Peer peer : peers.values()) {
+            if (Instant.now().isAfter(peer.lastActive.plus(peerTimeout))) {
+                peer.disconnect();
+                continue;
+            }
+
+            if (peer.isHandshakeSent && peer.isHandshakeReceived) peer.sendKeepAlive();
+        }
     }
 
     //-----------------------------------
@@ -309,7 +279,7 @@ public class Client {
 
     private void handleBlockRequested(DataRequest block) {
         outgoingBlocks.add(block);
-        processUploads();
+        uploadsTask.trigger();
     }
 
     private void handleBlockCancelled(DataRequest block) {
@@ -320,7 +290,7 @@ public class Client {
             }
             item.isCancelled = true;
         }
-        processUploads();
+        uploadsTask.trigger();
     }
 
     private final Throttle uploadThrottle = new Throttle(
@@ -329,21 +299,25 @@ public class Client {
     );
 
     private void processUploads() {
-        if (!isProcessingUploads.compareAndSet(false, true)) return;
-
         DataRequest block;
         while (!uploadThrottle.isThrottled() && (block = outgoingBlocks.poll()) != null) {
             if (block.isCancelled) continue;
-            if (!torrent.isPieceVerified[block.piece]) continue;
+            if (!torrent.isPieceVerified(block.piece)) continue;
+            if (block.length <= 0 || block.length > Peer.MAX_BLOCK_LENGTH || block.begin < 0 ||
+                    (long) block.begin + block.length > torrent.getPieceSize(block.piece)) continue;
 
-            byte[] data = torrent.readBlock(block.piece, block.begin, block.length);
+            // Served from the read cache where possible, otherwise mapped straight from storage
+            ByteBuffer[] data = torrent.readCache.getBlock(block.piece, block.begin, block.length);
+            if (data == null) data = torrent.mapBlock(block.piece, block.begin, block.length);
             if (data == null) continue;
 
             block.peer.sendPiece(block.piece, block.begin, data);
             uploadThrottle.add(block.length);
             torrent.uploaded += block.length;
         }
-        isProcessingUploads.set(false);
+
+        // Come back when the throttle lets more through
+        if (!outgoingBlocks.isEmpty()) uploadsTask.triggerLater(uploadThrottle.getDelay());
     }
 
     //----------------------------------
@@ -355,107 +329,178 @@ public class Client {
     private void handleBlockReceived(DataPackage args) {
         incomingBlocks.add(args);
 
-        args.peer.isBlockRequested[args.piece][args.block] = false;
-
-        peers.values().forEach(peer -> {
-            if (!peer.isBlockRequested[args.piece][args.block]) return;
-            peer.sendRequest(Peer.MessageType.cancel, args.piece, args.block * torrent.blockSize, torrent.blockSize);
-            peer.isBlockRequested[args.piece][args.block] = false;
-        });
+        // The first copy to land cancels the others
+        for (RequestTable.Request request : torrent.requests.removeOthers(args.peer, args.piece, args.block)) {
+            sendCancel(request);
+        }
 
-        processDownloads();
+        downloadsTask.trigger();
     }
 
-    private final Throttle downloadThrottle = new Throttle(
-            maxDownloadBytesPerSec,
-            Duration.ofSeconds(1)
-    );
+    // Most peers a block is requested from at once in endgame
+    private static final int ENDGAME_MAX_COPIES = 3;
 
-    private void processDownloads() {
-        if (!isProcessingDownloads.compareAndSet(false, true)) return;
+    // Unlimited unless set, a deep pipeline to each peer is what keeps downloads fast
+    private final Throttle downloadThrottle;
 
+    private void processDownloads() {
         DataPackage incomingBlock;
         while((incomingBlock = incomingBlocks.poll()) != null) {
-            torrent.writeBlock(incomingBlock.piece, incomingBlock.block, incomingBlock.data);
-        }
+            if (torrent.isBlockAcquired(incomingBlock.piece, incomingBlock.block)) {
+                // Another copy got here first
+                torrent.wastedBytes += incomingBlock.data.remaining();
+            } else {
+                // Marked first, a block that completes a bad piece clears it again while it's written
+                torrent.picker.markPartial(incomingBlock.piece);
+                torrent.writeBlock(incomingBlock.piece, incomingBlock.block, incomingBlock.data);
+            }
 
-        if (torrent.isCompleted()) {
-            isProcessingDownloads.set(false);
-            return;
-        }
+            // Cleared once the block is written, so it isn't requested again in between
+            for (RequestTable.Request request : torrent.requests.remove(incomingBlock.piece, incomingBlock.block)) {
+                if (request.peer != incomingBlock.peer) sendCancel(request);
+            }
 
-        int[] ranked = getRankedPieces();
+            torrent.blockPool.release(incomingBlock.data);
+        }
 
-        for (var piece : ranked) {
-            if (torrent.isPieceVerified[piece]) continue;
+        if (torrent.isCompleted()) return;
 
-            for (Peer peer : getRankedSeeders()) {
-                if (!peer.isPieceDownloaded[piece]) continue;
+        // In endgame the last blocks go to several peers, and whichever answers first wins
+        int maxCopies = updateEndgame() ? ENDGAME_MAX_COPIES : 1;
 
-                for (int block = 0; block < torrent.getBlockCount(piece); block++) {
-                    if (downloadThrottle.isThrottled()) continue;
-                    if (torrent.isBlockAcquired[piece][block]) continue;
+        for (Peer peer : getRankedSeeders()) {
+            if (downloadThrottle.isThrottled()) break;
+            if (peer.isChokeReceived) continue;
 
-                    // Request max one block from each peer
-                    if (peer.getBlocksRequested() > 0) continue;
+            // Keep as many requests outstanding as the peer's bandwidth-delay product
+            int slots = peer.getRequestSlots();
 
-                    // Request from one peer
-                    int finalBlock = block;
-                    if (peers.values().stream().anyMatch(x -> x.isBlockRequested[piece][finalBlock])) continue;
+            slots = requestBlocks(peer, slots);
 
-                    int size = torrent.getBlockSize(piece, finalBlock);
-                    peer.sendRequest(Peer.MessageType.request, piece, finalBlock * torrent.blockSize, size);
-                    downloadThrottle.add(size);
-                    peer.isBlockRequested[piece][finalBlock] = true;
+            // Blocks with fewer copies requested go first
+            for (int copies = 2; copies <= maxCopies && slots > 0; copies++) {
+                for (int piece : torrent.picker.pickFullyRequested(peer.downloadedPieces, slots)) {
+                    slots = requestBlocks(peer, piece, slots, copies);
+                    if (slots <= 0) break;
                 }
             }
         }
-        isProcessingDownloads.set(false);
+
+        // Come back when the throttle lets more through
+        if (downloadThrottle.isThrottled()) downloadsTask.triggerLater(downloadThrottle.getDelay());
     }
 
-    // Randomly order seeders
-    private Peer[] getRankedSeeders() {
-        List<Peer> seederList = new ArrayList<>(seeders.values());
-        Collections.shuffle(seederList, new Random());
-        return seederList.toArray(new Peer[0]);
+    // Requests up to slots blocks the peer has, picking until they're used or nothing is left, returns the slots left
+    private int requestBlocks(Peer peer, int slots) {
+        // Pieces already looked at, one can stay offered if its only free blocks are kept from this peer
+        Set<Integer> tried = new HashSet<>();
+
+        while (slots > 0 && !downloadThrottle.isThrottled()) {
+            int[] pieces = torrent.picker.pick(peer.downloadedPieces, slots, tried);
+            if (pieces.length == 0) break;
+
+            for (int piece : pieces) {
+                tried.add(piece);
+                slots = requestBlocks(peer, piece, slots, 1);
+                if (slots <= 0) break;
+            }
+        }
+        return slots;
     }
 
-    private int[] getRankedPieces() {
-        int[] indices = IntStream.range(0, torrent.getPieceCount()).toArray();
-        double[] scores = Arrays.stream(indices).mapToDouble(this::getPieceScore).toArray();
+    // Requests blocks of the piece with fewer than maxCopies requests, returns the slots left
+    private int requestBlocks(Peer peer, int piece, int slots, int maxCopies) {
+        int dropCount = torrent.picker.getDropCount(piece);
+        int blockCount = torrent.getBlockCount(piece);
+        boolean isBlockLeft = false;
+        int block = 0;
+        for (; block < blockCount && slots > 0; block++) {
+            if (downloadThrottle.isThrottled()) return slots;
+            if (torrent.isBlockAcquired(piece, block)) continue;
+            // A block that timed out on this peer goes to another one that has it, if there is one
+            if (torrent.requests.hasTimedOut(peer, piece, block) && hasOtherSource(peer, piece)) {
+                isBlockLeft = true;
+                continue;
+            }
 
-        // Sort indices based on scores
-        Integer[] indicesCopy = Arrays.stream(indices).boxed().toArray(Integer[]::new);
-        Arrays.sort(indicesCopy, Comparator.comparingDouble(x -> scores[x]));
-        Collections.reverse(Arrays.asList(indicesCopy));
-        indices = Arrays.stream(indicesCopy).mapToInt(Integer::intValue).toArray();
+            // Added first, the block can arrive before sendRequest returns
+            if (!torrent.requests.add(peer, piece, block, maxCopies)) continue;
+            int size = torrent.getBlockSize(piece, block);
+            peer.sendRequest(Peer.MessageType.request, piece, block * torrent.blockSize, size);
+            downloadThrottle.add(size);
+            slots--;
+        }
 
-        return indices;
+        // Every block was looked at and none is left unrequested, so picks stop offering it
+        if (maxCopies == 1 && !isBlockLeft && !hasUnrequestedBlock(piece, block)) {
+            torrent.picker.markFullyRequested(piece, dropCount);
+        }
+        return slots;
     }
 
-    // Rank pieces based on progress, rarity, and a random value to prevent identical rankings
-    private double getPieceScore(int piece) {
-        double progress = getPieceProgress(piece);
-        double rarity = getPieceRarity(piece);
+    private boolean hasOtherSource(Peer peer, int piece) {
+        for (Peer other : seeders.values()) {
+            if (other != peer && !other.isChokeReceived && !other.isSnubbed && other.isPieceDownloaded(piece)) return true;
+        }
+        return false;
+    }
 
-        if (progress == 1.0) progress = 0;
+    private boolean hasUnrequestedBlock(int piece, int from) {
+        for (int block = from; block < torrent.getBlockCount(piece); block++) {
+            if (!torrent.isBlockAcquired(piece, block) && !torrent.requests.isRequested(piece, block)) return true;
+        }
+        return false;
+    }
+
+    private boolean isEndgame = false;
+
+    // Endgame starts once every missing block could be requested at the same time
+    private boolean updateEndgame() {
+        long missing = torrent.getTotalBlockCount() - torrent.acquiredBlocks.count();
+
+        long budget = 0;
+        for (Peer peer : seeders.values()) {
+            if (peer.isChokeReceived) continue;
+            budget += peer.isSnubbed ? 1 : peer.pipeline.getTargetDepth();
+        }
 
-        double rand = new Random().nextDouble(100) / 1000.0;
+        boolean isEndgame = missing <= budget;
+        if (isEndgame && !this.isEndgame) System.out.println("Starting endgame with " + missing + " blocks left");
+        this.isEndgame = isEndgame;
+        return isEndgame;
+    }
 
-        return progress + rarity + rand;
+    // Randomly order seeders
+    private Peer[] getRankedSeeders() {
+        List<Peer> seederList = new ArrayList<>(seeders.values());
+        Collections.shuffle(seederList, new Random());
+        return seederList.toArray(new Peer[0]);
     }
 
-    // Find the piece progress from percentage of blocks already acquired
-    private double getPieceProgress(int index) {
-        return Arrays.stream(torrent.isBlockAcquired[index])
-                .mapToDouble(x -> x ? 1.0 : 0.0)
-                .average().orElse(0.0);
+    // Reissues requests that took too long, and stops relying on peers that stopped sending
+    private void processRequestTimeouts() {
+        List<RequestTable.Request> timedOut = torrent.requests.removeSentBefore(System.nanoTime() - requestTimeout.toNanos());
+        for (RequestTable.Request request : timedOut) {
+            System.out.println(request.peer + " request " + request.piece + ", " + request.block + " timed out");
+            sendCancel(request);
+        }
+        if (!timedOut.isEmpty()) downloadsTask.trigger();
+
+        for (Peer peer : peers.values()) {
+            if (peer.isSnubbed || peer.getBlocksRequested() == 0) continue;
+            if (!peer.pipeline.isStalled(snubTimeout.toNanos())) continue;
+
+            System.out.println(peer + " snubbed us");
+            peer.isSnubbed = true;
+            for (RequestTable.Request request : torrent.requests.removeAll(peer)) {
+                sendCancel(request);
+            }
+            downloadsTask.trigger();
+        }
     }
 
-    private double getPieceRarity(int index) {
-        if (peers.isEmpty()) return 0;
-        return peers.values().stream()
-                .mapToDouble(x -> x.isPieceDownloaded[index] ? 0.0 : 1.0)
-                .average().orElse(0.0);
+    private void sendCancel(RequestTable.Request request) {
+        int size = torrent.getBlockSize(request.piece, request.block);
+        request.peer.sendRequest(Peer.MessageType.cancel, request.piece, request.block * torrent.blockSize, size);
     }
 }
\ No newline at end of file
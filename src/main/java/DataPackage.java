@@ -1,10 +1,13 @@
+import java.nio.ByteBuffer;
+
+// data comes from the torrent's block pool and should be released once written
 public class DataPackage {
     public Peer peer;
     public int piece;
     public int block;
-    public byte[] data;
+    public ByteBuffer data;
 
-    public DataPackage(Peer peer, int piece, int block, byte[] data) {
+    public DataPackage(Peer peer, int piece, int block, ByteBuffer data) {
         this.peer = peer;
         this.piece = piece;
         this.block = block;
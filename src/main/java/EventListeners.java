@@ -29,4 +29,16 @@ public class EventListeners {
     public interface PieceVerifiedListener {
         void onPieceVerified(int pieceVerified);
     }
+
+    public interface AvailabilityChangedListener {
+        void onAvailabilityChanged(int piece, int change);
+    }
+
+    public interface RecheckProgressListener {
+        void onRecheckProgress(int checked, int total);
+    }
+
+    public interface ConnectionAcceptedListener {
+        void onConnectionAccepted(PeerConnection connection);
+    }
 }
@@ -0,0 +1,141 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+Keeps recently used files open, closing the least recently used once maxOpen is exceeded.
+Channels are shared and only used with positional reads and writes, so callers need no locking.
+Handles are reference counted, an evicted channel is closed when its last user releases it.
+ */
+public class FileChannelCache {
+    public static final int DEFAULT_MAX_OPEN = 64;
+
+    private int maxOpen;
+    private final LinkedHashMap<Path, Handle> handles = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long opened = 0;
+    private long hits = 0;
+
+    public FileChannelCache(int maxOpen) {
+        this.maxOpen = Math.max(1, maxOpen);
+    }
+
+    public class Handle implements AutoCloseable {
+        public final FileChannel channel;
+        private final boolean isWritable;
+        private int users = 0;
+        private boolean isEvicted = false;
+
+        private Handle(FileChannel channel, boolean isWritable) {
+            this.channel = channel;
+            this.isWritable = isWritable;
+        }
+
+        @Override
+        public void close() {
+            release(this);
+        }
+    }
+
+    /*
+    Returns an open channel for the file, to be closed by the caller when done with it.
+    Read handles return null if the file doesn't exist, write handles create the file and its directories.
+     */
+    public Handle acquire(Path path, boolean write) throws IOException {
+        synchronized (this) {
+            Handle handle = handles.get(path);
+            if (handle != null && (handle.isWritable || !write)) {
+                handle.users++;
+                hits++;
+                return handle;
+            }
+        }
+
+        // Open outside the lock so other files aren't held up by the syscall
+        FileChannel channel;
+        if (write) {
+            Path dir = path.getParent();
+            if (dir != null && !Files.exists(dir)) Files.createDirectories(dir);
+            channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        } else {
+            try {
+                channel = FileChannel.open(path, StandardOpenOption.READ);
+            } catch (NoSuchFileException e) {
+                return null;
+            }
+        }
+
+        synchronized (this) {
+            Handle existing = handles.get(path);
+            if (existing != null && (existing.isWritable || !write)) {
+                channel.close();
+                existing.users++;
+                hits++;
+                return existing;
+            }
+
+            Handle handle = new Handle(channel, write);
+            handle.users++;
+            opened++;
+            Handle replaced = handles.put(path, handle);
+            if (replaced != null) retire(replaced);
+            evict();
+            return handle;
+        }
+    }
+
+    private synchronized void release(Handle handle) {
+        handle.users--;
+        if (handle.isEvicted && handle.users == 0) closeChannel(handle.channel);
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<Path, Handle>> iterator = handles.entrySet().iterator();
+        while (handles.size() > maxOpen && iterator.hasNext()) {
+            Handle handle = iterator.next().getValue();
+            iterator.remove();
+            retire(handle);
+        }
+    }
+
+    private void retire(Handle handle) {
+        handle.isEvicted = true;
+        if (handle.users == 0) closeChannel(handle.channel);
+    }
+
+    private static void closeChannel(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("Failed to close file: " + e.getMessage());
+        }
+    }
+
+    public synchronized void setMaxOpen(int maxOpen) {
+        this.maxOpen = Math.max(1, maxOpen);
+        evict();
+    }
+
+    public synchronized void closeAll() {
+        for (Handle handle : handles.values()) retire(handle);
+        handles.clear();
+    }
+
+    public synchronized int getOpenCount() {
+        return handles.size();
+    }
+
+    public synchronized long getOpenedCount() {
+        return opened;
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+}
@@ -0,0 +1,60 @@
+import java.nio.file.Path;
+import java.util.List;
+
+/*
+Where each of a torrent's files sits in the torrent as a whole, with its path resolved once.
+Offsets are kept in a sorted long[] so the files overlapping any byte range are found with a
+binary search, whatever the number of files.
+ */
+public class FileIndex {
+    // offsets[i] is where file i starts, offsets[count] is the total size
+    private final long[] offsets;
+    private final Path[] paths;
+
+    public FileIndex(List<FileItem> files, Path[] paths) {
+        this.paths = paths;
+        offsets = new long[files.size() + 1];
+        for (int i = 0; i < files.size(); i++) {
+            offsets[i + 1] = offsets[i] + files.get(i).size;
+        }
+    }
+
+    public int getFileCount() {
+        return paths.length;
+    }
+
+    public long getTotalSize() {
+        return offsets[paths.length];
+    }
+
+    public long getStart(int file) {
+        return offsets[file];
+    }
+
+    public long getEnd(int file) {
+        return offsets[file + 1];
+    }
+
+    public long getSize(int file) {
+        return offsets[file + 1] - offsets[file];
+    }
+
+    public Path getPath(int file) {
+        return paths[file];
+    }
+
+    /*
+    The first file holding any data at or after position, or the file count if there isn't one.
+    Callers walk on from here until a file starts at or past the end of their range.
+     */
+    public int findFile(long position) {
+        int low = 0;
+        int high = paths.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (offsets[mid + 1] > position) high = mid;
+            else low = mid + 1;
+        }
+        return low;
+    }
+}
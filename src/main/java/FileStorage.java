@@ -0,0 +1,205 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+Stores the torrent in its files on disk, using positional reads and writes on channels
+kept open by a FileChannelCache.
+ */
+public class FileStorage implements Storage {
+    private final FileIndex index;
+    public final FileChannelCache fileCache;
+
+    // Pieces are hashed through a fixed buffer per thread rather than being read whole
+    public static final int HASH_BUFFER_SIZE = 256 * 1024;
+    private static final ThreadLocal<ByteBuffer> hashBuffer =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(HASH_BUFFER_SIZE));
+
+    // Blocks are sent as slices of read-only windows mapped from each file, reused least recently used first
+    public static final int MAP_WINDOW_SIZE = 16 * 1024 * 1024;
+    private static final int MAX_MAPPED_WINDOWS = 64;
+    // Lookups take no lock, mapping a window only locks its file
+    private final ConcurrentHashMap<Long, MappedWindow> mappedWindows = new ConcurrentHashMap<>();
+    private final Object[] fileLocks;
+
+    private static class MappedWindow {
+        final MappedByteBuffer buffer;
+        volatile long lastUsed = System.nanoTime();
+
+        MappedWindow(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+
+    public FileStorage(FileIndex index, int maxOpenFiles) {
+        this.index = index;
+        fileCache = new FileChannelCache(maxOpenFiles);
+
+        fileLocks = new Object[index.getFileCount()];
+        for (int i = 0; i < fileLocks.length; i++) fileLocks[i] = new Object();
+    }
+
+    @Override
+    public boolean read(long start, ByteBuffer dst) {
+        int base = dst.position();
+        long end = start + dst.remaining();
+
+        for (int i = index.findFile(start); i < index.getFileCount() && index.getStart(i) < end; i++) {
+            long fileStart = Math.max(start, index.getStart(i)) - index.getStart(i);
+            long fileEnd = Math.min(end, index.getEnd(i)) - index.getStart(i);
+            int fileLength = (int) (fileEnd - fileStart);
+            int blockStart = (int) (index.getStart(i) + fileStart - start);
+            if (fileLength <= 0) continue;
+
+            ByteBuffer target = dst.duplicate();
+            target.position(base + blockStart).limit(base + blockStart + fileLength);
+
+            try (FileChannelCache.Handle file = fileCache.acquire(index.getPath(i), false)) {
+                if (file == null) return false;
+
+                long position = fileStart;
+                while (target.hasRemaining()) {
+                    int read = file.channel.read(target, position);
+                    if (read < 0) break;
+                    position += read;
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+
+            // Reused buffers like the hash buffer may hold old data, so anything past the end of a short file reads as zeros
+            while (target.hasRemaining()) target.put((byte) 0);
+        }
+        dst.position(dst.limit());
+        return true;
+    }
+
+    @Override
+    public void write(long start, ByteBuffer src) {
+        int base = src.position();
+        long end = start + src.remaining();
+
+        for (int i = index.findFile(start); i < index.getFileCount() && index.getStart(i) < end; i++) {
+            long fileStart = Math.max(start, index.getStart(i)) - index.getStart(i);
+            long fileEnd = Math.min(end, index.getEnd(i)) - index.getStart(i);
+            int fileLength = (int) (fileEnd - fileStart);
+            int blockStart = (int) (index.getStart(i) + fileStart - start);
+            if (fileLength <= 0) continue;
+
+            ByteBuffer source = src.duplicate();
+            source.position(base + blockStart).limit(base + blockStart + fileLength);
+
+            // Positional writes don't share a file pointer, so writers don't need to lock
+            try (FileChannelCache.Handle file = fileCache.acquire(index.getPath(i), true)) {
+                long position = fileStart;
+                while (source.hasRemaining()) {
+                    position += file.channel.write(source, position);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    @Override
+    public boolean hash(long start, int length, MessageDigest digest) {
+        ByteBuffer buffer = hashBuffer.get();
+        long end = start + length;
+
+        for (long position = start; position < end; position += buffer.capacity()) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            if (!read(position, buffer)) return false;
+            buffer.flip();
+            digest.update(buffer);
+        }
+        return true;
+    }
+
+    /*
+    Slices the range out of windows mapped from the files, so the data never passes through
+    the Java heap. A window serves every block in it, so seeding costs one mmap per window
+    rather than one per block. Evicted windows are unmapped by the garbage collector once
+    their last slice has been sent, so at most a few windows beyond the cap are ever mapped.
+     */
+    @Override
+    public ByteBuffer[] map(long start, int length) {
+        long end = start + length;
+        List<ByteBuffer> region = new ArrayList<>();
+
+        for (int i = index.findFile(start); i < index.getFileCount() && index.getStart(i) < end; i++) {
+            long fileStart = Math.max(start, index.getStart(i)) - index.getStart(i);
+            long fileEnd = Math.min(end, index.getEnd(i)) - index.getStart(i);
+            if (fileEnd <= fileStart) continue;
+
+            // A range can cross windows as well as files
+            long position = fileStart;
+            while (position < fileEnd) {
+                int number = (int) (position / MAP_WINDOW_SIZE);
+                long windowStart = (long) number * MAP_WINDOW_SIZE;
+                int to = (int) Math.min(fileEnd - windowStart, MAP_WINDOW_SIZE);
+
+                MappedByteBuffer window = getMappedWindow(i, number, to);
+                if (window == null) return null;
+
+                int from = (int) (position - windowStart);
+                region.add(window.slice(from, to - from));
+                position = windowStart + to;
+            }
+        }
+        return region.toArray(new ByteBuffer[0]);
+    }
+
+    // The window, mapped over at least its first needed bytes, or null if the file is shorter than that
+    private MappedByteBuffer getMappedWindow(int file, int number, int needed) {
+        long key = ((long) file << 32) | number;
+        MappedWindow window = mappedWindows.get(key);
+        if (window != null && window.buffer.capacity() >= needed) {
+            window.lastUsed = System.nanoTime();
+            return window.buffer;
+        }
+
+        synchronized (fileLocks[file]) {
+            // Another thread may have mapped it while this one waited
+            window = mappedWindows.get(key);
+            if (window != null && window.buffer.capacity() >= needed) return window.buffer;
+
+            // A window mapped while the file was still short is mapped again now it has grown
+            try (FileChannelCache.Handle handle = fileCache.acquire(index.getPath(file), false)) {
+                if (handle == null) return null;
+
+                long position = (long) number * MAP_WINDOW_SIZE;
+                long size = Math.min(MAP_WINDOW_SIZE, handle.channel.size() - position);
+                if (size < needed) return null;
+                window = new MappedWindow(handle.channel.map(FileChannel.MapMode.READ_ONLY, position, size));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            mappedWindows.put(key, window);
+        }
+
+        while (mappedWindows.size() > MAX_MAPPED_WINDOWS) evictOldestWindow();
+        return window.buffer;
+    }
+
+    // Only runs when a window is mapped, so a scan over the few windows kept is cheap next to the mmap
+    private void evictOldestWindow() {
+        Map.Entry<Long, MappedWindow> oldest = null;
+        for (Map.Entry<Long, MappedWindow> entry : mappedWindows.entrySet()) {
+            if (oldest == null || entry.getValue().lastUsed < oldest.getValue().lastUsed) oldest = entry;
+        }
+        if (oldest != null) mappedWindows.remove(oldest.getKey(), oldest.getValue());
+    }
+
+    @Override
+    public void close() {
+        mappedWindows.clear();
+        fileCache.closeAll();
+    }
+}
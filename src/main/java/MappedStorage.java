@@ -0,0 +1,172 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+Serves a torrent's data straight from memory mapped files.
+Each file is mapped in windows, since a single mapping can't exceed 2 GB,
+and windows are only mapped the first time they're touched. Reads, writes and hashing
+work on slices of the mappings, so blocks go between the page cache and the network
+or the digest without a syscall or a copy onto the heap.
+ */
+public class MappedStorage implements Storage {
+    public static final int DEFAULT_WINDOW_SIZE = 1 << 30;
+
+    private final FileIndex index;
+    private final int windowSize;
+    private final MappedByteBuffer[][] windows;
+
+    public MappedStorage(FileIndex index) {
+        this(index, DEFAULT_WINDOW_SIZE);
+    }
+
+    public MappedStorage(FileIndex index, int windowSize) {
+        this.index = index;
+        this.windowSize = windowSize;
+
+        windows = new MappedByteBuffer[index.getFileCount()][];
+        for (int i = 0; i < index.getFileCount(); i++) {
+            windows[i] = new MappedByteBuffer[(int) ((index.getSize(i) + windowSize - 1) / windowSize)];
+        }
+    }
+
+    /*
+    Returns independent slices of the mapped files covering start to start + length, in order.
+    Returns null if a file hasn't been created yet, unless create is set in which case
+    the file is created and extended to its full size.
+     */
+    public ByteBuffer[] slices(long start, int length, boolean create) {
+        long end = start + length;
+        List<ByteBuffer> slices = new ArrayList<>();
+
+        for (int i = index.findFile(start); i < index.getFileCount() && index.getStart(i) < end; i++) {
+            long fileStart = Math.max(start, index.getStart(i)) - index.getStart(i);
+            long fileEnd = Math.min(end, index.getEnd(i)) - index.getStart(i);
+            if (fileEnd <= fileStart) continue;
+
+            // A range can cross windows as well as files
+            long position = fileStart;
+            while (position < fileEnd) {
+                int number = (int) (position / windowSize);
+                MappedByteBuffer window = getWindow(i, number, create);
+                if (window == null) return null;
+
+                long windowStart = (long) number * windowSize;
+                int from = (int) (position - windowStart);
+                int to = (int) Math.min(fileEnd - windowStart, window.capacity());
+                slices.add(window.slice(from, to - from));
+                position = windowStart + to;
+            }
+        }
+        return slices.toArray(new ByteBuffer[0]);
+    }
+
+    @Override
+    public boolean read(long start, ByteBuffer dst) {
+        ByteBuffer[] slices = slices(start, dst.remaining(), false);
+        if (slices == null) return false;
+
+        for (ByteBuffer slice : slices) {
+            dst.put(slice);
+        }
+        return true;
+    }
+
+    @Override
+    public void write(long start, ByteBuffer src) {
+        ByteBuffer source = src.duplicate();
+        for (ByteBuffer slice : slices(start, source.remaining(), true)) {
+            int limit = source.limit();
+            source.limit(source.position() + slice.remaining());
+            slice.put(source);
+            source.limit(limit);
+        }
+    }
+
+    @Override
+    public ByteBuffer[] map(long start, int length) {
+        return slices(start, length, false);
+    }
+
+    // Hash straight from the mapped pages
+    @Override
+    public boolean hash(long start, int length, MessageDigest digest) {
+        ByteBuffer[] slices = slices(start, length, false);
+        if (slices == null) return false;
+
+        for (ByteBuffer slice : slices) {
+            digest.update(slice);
+        }
+        return true;
+    }
+
+    /*
+    Reads map windows read-only, so files on read-only media can still be seeded and
+    short files aren't extended. A window mapped for reading is mapped read/write the
+    first time something is written to it.
+     */
+    private synchronized MappedByteBuffer getWindow(int file, int number, boolean create) {
+        MappedByteBuffer window = windows[file][number];
+        if (window != null && (!create || !window.isReadOnly())) return window;
+
+        Path path = index.getPath(file);
+        long position = (long) number * windowSize;
+        long size = Math.min(windowSize, index.getSize(file) - position);
+        try {
+            if (create) {
+                Path dir = path.getParent();
+                if (dir != null && !Files.exists(dir)) Files.createDirectories(dir);
+
+                // The mapping stays valid after the channel is closed
+                try (FileChannel channel = FileChannel.open(path,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+                    window = channel.map(FileChannel.MapMode.READ_WRITE, position, size);
+                }
+            } else {
+                if (!Files.exists(path)) return null;
+
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                    if (channel.size() < position + size) return null;
+                    window = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        windows[file][number] = window;
+        return window;
+    }
+
+    // Writes any dirty pages back to the files
+    @Override
+    public synchronized void flush() {
+        for (MappedByteBuffer[] fileWindows : windows) {
+            for (MappedByteBuffer window : fileWindows) {
+                if (window != null && !window.isReadOnly()) window.force();
+            }
+        }
+    }
+
+    // The mappings themselves are released by the garbage collector once nothing references them
+    @Override
+    public boolean isMemoryBacked() {
+        return true;
+    }
+
+    @Override
+    public synchronized void close() {
+        flush();
+        for (MappedByteBuffer[] fileWindows : windows) {
+            Arrays.fill(fileWindows, null);
+        }
+    }
+}
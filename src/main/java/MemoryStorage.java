@@ -0,0 +1,103 @@
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+Keeps the whole torrent in memory and never touches the disk, for benchmarks and testing.
+Data is held in fixed size chunks allocated on the first write to them, and ranges
+that have never been written read as missing, like a file that hasn't been created.
+ */
+public class MemoryStorage implements Storage {
+    public static final int CHUNK_SIZE = 1 << 20;
+
+    private final long totalSize;
+    private final ByteBuffer[] chunks;
+
+    public MemoryStorage(long totalSize) {
+        this.totalSize = totalSize;
+        chunks = new ByteBuffer[(int) ((totalSize + CHUNK_SIZE - 1) / CHUNK_SIZE)];
+    }
+
+    // Independent slices of the chunks covering the range, or null if any of them is missing
+    private ByteBuffer[] slices(long start, int length, boolean create) {
+        long end = Math.min(start + length, totalSize);
+        List<ByteBuffer> slices = new ArrayList<>();
+
+        long position = start;
+        while (position < end) {
+            int index = (int) (position / CHUNK_SIZE);
+            ByteBuffer chunk = getChunk(index, create);
+            if (chunk == null) return null;
+
+            long chunkStart = (long) index * CHUNK_SIZE;
+            int from = (int) (position - chunkStart);
+            int to = (int) Math.min(end - chunkStart, chunk.capacity());
+            slices.add(chunk.slice(from, to - from));
+            position = chunkStart + to;
+        }
+        return slices.toArray(new ByteBuffer[0]);
+    }
+
+    private synchronized ByteBuffer getChunk(int index, boolean create) {
+        if (chunks[index] == null && create) {
+            chunks[index] = ByteBuffer.allocate((int) Math.min(CHUNK_SIZE, totalSize - (long) index * CHUNK_SIZE));
+        }
+        return chunks[index];
+    }
+
+    @Override
+    public boolean read(long start, ByteBuffer dst) {
+        ByteBuffer[] slices = slices(start, dst.remaining(), false);
+        if (slices == null) return false;
+
+        for (ByteBuffer slice : slices) {
+            dst.put(slice);
+        }
+        return true;
+    }
+
+    @Override
+    public void write(long start, ByteBuffer src) {
+        ByteBuffer source = src.duplicate();
+        for (ByteBuffer slice : slices(start, source.remaining(), true)) {
+            int limit = source.limit();
+            source.limit(source.position() + slice.remaining());
+            slice.put(source);
+            source.limit(limit);
+        }
+    }
+
+    @Override
+    public ByteBuffer[] map(long start, int length) {
+        return slices(start, length, false);
+    }
+
+    @Override
+    public boolean hash(long start, int length, MessageDigest digest) {
+        ByteBuffer[] slices = slices(start, length, false);
+        if (slices == null) return false;
+
+        for (ByteBuffer slice : slices) {
+            digest.update(slice);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isPersistent() {
+        return false;
+    }
+
+    @Override
+    public boolean isMemoryBacked() {
+        return true;
+    }
+
+    @Override
+    public synchronized void close() {
+        // Nothing is persisted, so the data goes with it
+        Arrays.fill(chunks, null);
+    }
+}
@@ -0,0 +1,113 @@
+import java.nio.ByteBuffer;
+
+/*
+Collects the bytes read from a peer and splits them into length-prefixed messages.
+Socket reads go straight into one direct buffer and each message is handed out as a
+slice of it, so nothing is copied until the leftover partial message is compacted.
+The buffer grows while reads keep filling it and shrinks again when traffic is light.
+ */
+public class MessageFramer {
+    public static final int HANDSHAKE_LENGTH = 68;
+
+    public static final int MIN_CAPACITY = 32 * 1024;
+    public static final int MAX_CAPACITY = 1024 * 1024;
+
+    // Number of consecutive full or nearly empty reads before resizing
+    private static final int GROW_AFTER = 4;
+    private static final int SHRINK_AFTER = 256;
+
+    private final int maxMessageLength;
+
+    // Kept in write mode, data is between start and position
+    private ByteBuffer buffer;
+    private int start = 0;
+    // Length of a message that doesn't fit in the current buffer
+    private int required = 0;
+
+    private int offered;
+    private int fullReads = 0;
+    private int sparseReads = 0;
+
+    public MessageFramer(int maxMessageLength) {
+        this.maxMessageLength = maxMessageLength;
+        buffer = ByteBuffer.allocateDirect(MIN_CAPACITY);
+    }
+
+    public int capacity() {
+        return buffer.capacity();
+    }
+
+    public int buffered() {
+        return buffer.position() - start;
+    }
+
+    // Buffer to read into, with any consumed messages discarded
+    public ByteBuffer writable() {
+        if (start > 0) {
+            buffer.limit(buffer.position()).position(start);
+            buffer.compact();
+            start = 0;
+        }
+
+        if (required > buffer.capacity()) {
+            resize(required);
+        } else if (fullReads >= GROW_AFTER && buffer.capacity() < MAX_CAPACITY) {
+            resize(Math.min(buffer.capacity() * 2, MAX_CAPACITY));
+        } else if (sparseReads >= SHRINK_AFTER && buffer.capacity() > MIN_CAPACITY
+                && buffer.position() < buffer.capacity() / 4 && required <= buffer.capacity() / 2) {
+            resize(Math.max(buffer.capacity() / 2, MIN_CAPACITY));
+        }
+
+        offered = buffer.remaining();
+        return buffer;
+    }
+
+    // Record how much the last read filled the buffer, used to size the next one
+    public void onRead(int bytes) {
+        if (bytes >= offered) {
+            fullReads++;
+            sparseReads = 0;
+        } else if (bytes < buffer.capacity() / 8) {
+            sparseReads++;
+            fullReads = 0;
+        } else {
+            fullReads = 0;
+            sparseReads = 0;
+        }
+    }
+
+    // Next complete message as a slice of the buffer, valid until writable() is called again
+    public ByteBuffer next(boolean isHandshake) {
+        int available = buffer.position() - start;
+
+        int length;
+        if (isHandshake) {
+            length = HANDSHAKE_LENGTH;
+        } else {
+            if (available < 4) return null;
+            length = buffer.getInt(start) + 4;
+            if (length < 4 || length > maxMessageLength) {
+                throw new IllegalStateException("Invalid message length " + (length - 4));
+            }
+        }
+
+        if (available < length) {
+            required = length;
+            return null;
+        }
+
+        ByteBuffer message = buffer.slice(start, length);
+        start += length;
+        required = 0;
+        return message;
+    }
+
+    private void resize(int capacity) {
+        ByteBuffer resized = ByteBuffer.allocateDirect(capacity);
+        buffer.flip();
+        resized.put(buffer);
+        buffer = resized;
+        fullReads = 0;
+        sparseReads = 0;
+    }
+}
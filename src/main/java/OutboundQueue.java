@@ -0,0 +1,91 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/*
+Ordered queue of messages waiting to be sent to a peer.
+Only one write is in flight at a time, and each write gathers as many queued
+messages as fit in the byte budget so small messages share a single syscall.
+ */
+public class OutboundQueue {
+    public static final int DEFAULT_BATCH_BYTES = 256 * 1024;
+    private static final int MAX_BATCH_BUFFERS = 64;
+
+    private final int batchBytes;
+    private final ArrayDeque<ByteBuffer> queue = new ArrayDeque<>();
+
+    private boolean isWriting = false;
+    private long queuedBytes = 0;
+    private long bytesInFlight = 0;
+    private long bytesSent = 0;
+
+    public OutboundQueue() {
+        this(DEFAULT_BATCH_BYTES);
+    }
+
+    public OutboundQueue(int batchBytes) {
+        this.batchBytes = batchBytes;
+    }
+
+    public synchronized void offer(ByteBuffer buffer) {
+        queue.addLast(buffer);
+        queuedBytes += buffer.remaining();
+    }
+
+    // Buffers for the next gathering write, or null if a write is already in flight or nothing is queued
+    public synchronized ByteBuffer[] nextBatch() {
+        if (isWriting || queue.isEmpty()) return null;
+
+        int count = 0;
+        long size = 0;
+        for (ByteBuffer buffer : queue) {
+            if (count == MAX_BATCH_BUFFERS || (count > 0 && size + buffer.remaining() > batchBytes)) break;
+            size += buffer.remaining();
+            count++;
+        }
+
+        ByteBuffer[] batch = new ByteBuffer[count];
+        int i = 0;
+        for (ByteBuffer buffer : queue) {
+            if (i == count) break;
+            batch[i++] = buffer;
+        }
+
+        isWriting = true;
+        bytesInFlight = size;
+        return batch;
+    }
+
+    // Drop whatever the last write fully sent, partially sent buffers stay at the front
+    public synchronized void complete(long written) {
+        while (!queue.isEmpty() && !queue.peekFirst().hasRemaining()) {
+            queue.pollFirst();
+        }
+        queuedBytes -= written;
+        bytesSent += written;
+        bytesInFlight = 0;
+        isWriting = false;
+    }
+
+    public synchronized void clear() {
+        queue.clear();
+        queuedBytes = 0;
+        bytesInFlight = 0;
+        isWriting = false;
+    }
+
+    public synchronized boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    public synchronized long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    public synchronized long getBytesInFlight() {
+        return bytesInFlight;
+    }
+
+    public synchronized long getBytesSent() {
+        return bytesSent;
+    }
+}
@@ -1,14 +1,8 @@
-import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.AsynchronousSocketChannel;
-import java.nio.channels.CompletionHandler;
 import java.nio.charset.StandardCharsets;
 import java.time.Instant;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.BitSet;
-import java.util.List;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -57,30 +51,19 @@ public class Peer {
         return inetSocketAddress.toString();
     }
 
-    private AsynchronousSocketChannel client;
-    private final int bufferSize = 256;
-    private final ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
-    private ArrayList<Byte> data = new ArrayList<>();
+    private PeerConnection connection;
+    private final MessageFramer framer;
+    private final OutboundQueue outbound = new OutboundQueue();
 
-    public Boolean[] isPieceDownloaded;
-    public String getPiecesDownloaded() {
-        return Arrays.stream(isPieceDownloaded)
-                .map(x -> Integer.toString(x ? 1 : 0))
-                .collect(Collectors.joining(""));
-    }
-    public int getPiecesRequiredAvailable() {
-        return (int) IntStream.range(0, isPieceDownloaded.length)
-                .filter(i -> isPieceDownloaded[i] && !torrent.isPieceVerified[i])
-                .count();
-    }
-    public int getPiecesDownloadedCount() {
-        return (int) Arrays.stream(isPieceDownloaded)
-                .filter(x -> x)
-                .count();
-    }
-    public boolean isCompleted() {
-        return getPiecesDownloadedCount() == torrent.getPieceCount();
-    }
+    // Largest block a peer may send or request, as most clients refuse anything bigger
+    public static final int MAX_BLOCK_LENGTH = 128 * 1024;
+
+    public final Bitfield downloadedPieces;
+    public boolean isPieceDownloaded(int piece) { return downloadedPieces.get(piece); }
+    public String getPiecesDownloaded() { return downloadedPieces.toString(); }
+    public int getPiecesRequiredAvailable() { return downloadedPieces.countAndNot(torrent.verifiedPieces); }
+    public int getPiecesDownloadedCount() { return downloadedPieces.count(); }
+    public boolean isCompleted() { return downloadedPieces.isAll(); }
 
     public boolean isDisconnected;
 
@@ -93,14 +76,17 @@ public class Peer {
     public boolean isChokeReceived = true;
     public boolean isInterestedReceived = false;
 
-    public Boolean[][] isBlockRequested = new Boolean[0][];
-    public int getBlocksRequested() {
-        return Arrays.stream(isBlockRequested)
-                .mapToInt(x -> (int) Arrays.stream(x)
-                        .filter(y -> y)
-                        .count())
-                .sum();
+    public boolean isBlockRequested(int piece, int block) {
+        return torrent.requests.get(this, piece, block) != null;
     }
+    public int getBlocksRequested() { return torrent.requests.getCount(this); }
+
+    // Set when we have requests out but it stopped sending, cleared by the next block it sends
+    public volatile boolean isSnubbed = false;
+
+    // How many requests to keep outstanding, from this peer's rate and latency
+    public final RequestPipeline pipeline;
+    public int getRequestSlots() { return (isSnubbed ? 1 : pipeline.getTargetDepth()) - getBlocksRequested(); }
 
     public Instant lastActive;
     public Instant lastKeepAlive = Instant.EPOCH;
@@ -108,15 +94,11 @@ public class Peer {
     public long uploaded;
     public long downloaded;
 
-    public Peer(Torrent torrent, String localID, AsynchronousSocketChannel client) {
+    public Peer(Torrent torrent, String localID, PeerConnection connection) {
         this(torrent, localID);
-        this.client = client;
-        try {
-            //System.out.println("remote address " + client.getRemoteAddress());
-            inetSocketAddress = (InetSocketAddress) client.getRemoteAddress();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        this.connection = connection;
+        //System.out.println("remote address " + connection.getRemoteAddress());
+        inetSocketAddress = connection.getRemoteAddress();
     }
 
     public Peer(Torrent torrent, String localID, InetSocketAddress endPoint) {
@@ -131,36 +113,16 @@ public class Peer {
 
         lastActive = Instant.now();
         int pieceCount = torrent.getPieceCount();
-        isPieceDownloaded = new Boolean[pieceCount];
-        Arrays.fill(isPieceDownloaded, false);
-        isBlockRequested = new Boolean[pieceCount][];
-        for (int i = 0; i < pieceCount; i++) {
-            isBlockRequested[i] = new Boolean[torrent.getBlockCount(i)];
-        }
+        framer = new MessageFramer(Math.max(MAX_BLOCK_LENGTH + 13, (int) Math.ceil(pieceCount / 8.0) + 5));
+        downloadedPieces = new Bitfield(pieceCount);
+        pipeline = new RequestPipeline(torrent.blockSize);
     }
 
-    public void connect() {
+    public void connect(Transport transport) {
         // New connection, connect us -> them
-        if (client == null) {
-            try {
-                client = AsynchronousSocketChannel.open();
-                System.out.println("attempting connection to " + inetSocketAddress);
-                //System.out.println("reachable: " + inetSocketAddress.getAddress().isReachable(2000));
-                client.connect(inetSocketAddress, null, new CompletionHandler<Void, Void>() {
-                    @Override
-                    public void completed(Void result, Void attachment) {
-                        handleConnection();
-                    }
-                    @Override
-                    public void failed(Throwable exc, Void attachment) {
-                        System.out.println("Connection to " + inetSocketAddress + " failed: " + exc.getMessage());
-                        exc.printStackTrace();
-                        disconnect();
-                    }
-                });
-            } catch (Exception e) {
-                disconnect();
-            }
+        if (connection == null) {
+            System.out.println("attempting connection to " + inetSocketAddress);
+            transport.connect(this);
         }
         // Connection already established: them -> us
         else {
@@ -168,27 +130,39 @@ public class Peer {
         }
     }
 
+    // Called by the transport once an outgoing connection is established
+    void onConnected(PeerConnection connection) {
+        this.connection = connection;
+        if (isDisconnected) {
+            connection.close();
+            return;
+        }
+        handleConnection();
+    }
+
+    // Queue our handshake before reading, so it always goes out ahead of the bitfield sent in reply to theirs
     private void handleConnection() {
-        read();
         sendHandshake();
-        if (isHandshakeReceived) sendBitfield(torrent.isPieceVerified);
+        connection.start(this);
     }
 
     public void disconnect() {
         Exception ex = new Exception();
         //ex.printStackTrace();
-        if (!isDisconnected) {
-            isDisconnected = true;
-            System.out.println(this + " " + inetSocketAddress + " disconnected, down " + downloaded + ", up " + uploaded);
+        synchronized (downloadedPieces) {
+            if (!isDisconnected) {
+                isDisconnected = true;
+                System.out.println(this + " " + inetSocketAddress + " disconnected, down " + downloaded + ", up " + uploaded);
+                // Its pieces no longer count towards availability
+                torrent.availability.remove(downloadedPieces);
+                torrent.requests.removeAll(this);
+            }
         }
 
-        try {
-            if (client != null && client.isOpen()) {
-                client.close();
-            }
-        } catch (Exception e) {
-            System.out.println("Client wasn't open");
+        if (connection != null) {
+            connection.close();
         }
+        outbound.clear();
 
         if (disconnectedListener != null) {
             disconnectedListener.onDisconnected(this);
@@ -196,79 +170,43 @@ public class Peer {
     }
 
     private void sendBytes(byte[] bytes) {
-        ByteBuffer buffer = ByteBuffer.wrap(bytes);
-        try {
-            client.write(buffer, null, new CompletionHandler<Integer, Void>() {
-
-                @Override
-                public void completed(Integer result, Void attachment) {
-                    //System.out.println("bytes sent");
-                }
-
-                @Override
-                public void failed(Throwable exc, Void attachment) {
-                    System.out.println("Failed to send bytes");
-                }
-            });
-        } catch (Exception e) {
-            disconnect();
-        }
+        outbound.offer(ByteBuffer.wrap(bytes));
+        flush();
     }
 
-    private void read() {
-        //System.out.println("attempting read");
-        client.read(buffer, buffer, new CompletionHandler<>() {
-
-            @Override
-            public void completed(Integer result, ByteBuffer attachment) {
-                //System.out.println("completed read");
-
-                // Get data from buffer
-                attachment.flip();
-                byte[] bytes = new byte[attachment.limit()];
-                attachment.get(bytes);
-                for (byte b : bytes) {
-                    data.add(b);
-                }
-                attachment.clear();
-
-                int messageLength = getMessageLength(data);
-                while (data.size() >= messageLength) {
-
-                    List<Byte> subList = data.subList(0, messageLength);
-                    byte[] subBytes = new byte[subList.size()];
-                    int i = 0;
-                    for (Byte b : subList) {
-                        subBytes[i++] = b;
-                    }
-                    handleMessage(subBytes);
+    // Ask the transport to write out queued messages, anything sent before connecting waits in the queue
+    private void flush() {
+        if (connection == null || isDisconnected) return;
+        connection.flush();
+    }
 
-                    subList = data.subList(messageLength, data.size());
-                    data = new ArrayList<>(subList);
-                    messageLength = getMessageLength(data);
-                }
+    MessageFramer getFramer() {
+        return framer;
+    }
 
-                read();
-            }
+    OutboundQueue getOutbound() {
+        return outbound;
+    }
 
-            @Override
-            public void failed(Throwable exc, ByteBuffer attachment) {
-                System.out.println("failed to read: " + exc.toString());
-                disconnect();
-            }
-        });
+    public long getQueuedBytes() {
+        return outbound.getQueuedBytes();
     }
 
-    private int getMessageLength(List<Byte> data) {
-        if (!isHandshakeReceived) return 68;
-        if (data.size() < 4) return Integer.MAX_VALUE;
+    public long getBytesInFlight() {
+        return outbound.getBytesInFlight();
+    }
 
-        return ByteBuffer.wrap(new byte[] {
-                data.get(0),
-                data.get(1),
-                data.get(2),
-                data.get(3),
-        }).getInt() + 4;
+    // Called by the transport after each read, handles every complete message in place
+    void handleFrames() {
+        try {
+            ByteBuffer message;
+            while (!isDisconnected && (message = framer.next(!isHandshakeReceived)) != null) {
+                handleMessage(message);
+            }
+        } catch (IllegalStateException e) {
+            System.out.println(this + " " + e.getMessage());
+            disconnect();
+        }
     }
 
     public enum MessageType {
@@ -308,21 +246,25 @@ public class Peer {
     //                 ENCODING & DECODING
     //--------------------------------------------------------
 
-    public static HandshakeResult decodeHandshake(byte[] bytes) {
-        if (bytes.length != 68 || bytes[0] != 19) {
+    // Messages are passed as buffers starting at the length prefix, read with absolute offsets
+    public static HandshakeResult decodeHandshake(ByteBuffer bytes) {
+        if (bytes.limit() != 68 || bytes.get(0) != 19) {
             System.out.println("Invalid handshake 1");
             return new HandshakeResult(false, null, null);
         }
 
-        byte[] temp = Arrays.copyOfRange(bytes, 1, 20);
+        byte[] temp = new byte[19];
+        bytes.get(1, temp);
         if (!new String(temp, StandardCharsets.UTF_8).equals("BitTorrent protocol")) {
             System.out.println("Invalid handshake 2");
             return new HandshakeResult(false, null, null);
         }
 
-        byte[] hash = Arrays.copyOfRange(bytes, 28, 48);
+        byte[] hash = new byte[20];
+        bytes.get(28, hash);
 
-        temp = Arrays.copyOfRange(bytes, 48, 68);
+        temp = new byte[20];
+        bytes.get(48, temp);
         String id = new String(temp, StandardCharsets.UTF_8);
 
         return new HandshakeResult(true, hash, id);
@@ -348,10 +290,8 @@ public class Peer {
         return message;
     }
 
-    public static boolean decodeKeepAlive(byte[] bytes) {
-        // Wrap bytes to ensure order is big-endian
-        ByteBuffer buffer = ByteBuffer.wrap(bytes);
-        if (bytes.length != 4 || buffer.getInt(0) != 0) {
+    public static boolean decodeKeepAlive(ByteBuffer bytes) {
+        if (bytes.limit() != 4 || bytes.getInt(0) != 0) {
             System.out.println("Invalid keep-alive");
             return false;
         }
@@ -363,25 +303,24 @@ public class Peer {
         return buffer.putInt(0).array();
     }
 
-    public static boolean decodeChoke(byte[] bytes) {
+    public static boolean decodeChoke(ByteBuffer bytes) {
         return decodeState(bytes, MessageType.choke);
     }
 
-    public static boolean decodeUnchoke(byte[] bytes) {
+    public static boolean decodeUnchoke(ByteBuffer bytes) {
         return decodeState(bytes, MessageType.unchoke);
     }
 
-    public static boolean decodeInterested(byte[] bytes) {
+    public static boolean decodeInterested(ByteBuffer bytes) {
         return decodeState(bytes, MessageType.interested);
     }
 
-    public static boolean decodeNotInterested(byte[] bytes) {
+    public static boolean decodeNotInterested(ByteBuffer bytes) {
         return decodeState(bytes, MessageType.notInterested);
     }
 
-    public static boolean decodeState(byte[] bytes, MessageType type) {
-        ByteBuffer buffer = ByteBuffer.wrap(bytes);
-        if (bytes.length != 5 || buffer.getInt(0) != 1 || bytes[4] != (byte) type.getValue()) {
+    public static boolean decodeState(ByteBuffer bytes, MessageType type) {
+        if (bytes.limit() != 5 || bytes.getInt(0) != 1 || bytes.get(4) != (byte) type.getValue()) {
             System.out.println("Invalid" + type.toString());
             return false;
         }
@@ -412,51 +351,29 @@ public class Peer {
         return message;
     }
 
-    public static int decodeHave(byte[] bytes) {
-        ByteBuffer buffer = ByteBuffer.wrap(bytes);
-        if (bytes.length != 9 || buffer.getInt(0) != 5) {
+    public static int decodeHave(ByteBuffer bytes) {
+        if (bytes.limit() != 9 || bytes.getInt(0) != 5) {
             System.out.println("Invalid have");
             return -1;
         }
-        return buffer.getInt(5);
+        return bytes.getInt(5);
     }
 
-    public static BitfieldResult decodeBitfield(byte[] bytes, int pieces) {
+    public static BitfieldResult decodeBitfield(ByteBuffer bytes, int pieces) {
 
         //System.out.println("bytes: " + bytes.length + ", " + Arrays.toString(bytes));
         //System.out.println("pieces: " + pieces);
 
-        boolean[] isPieceDownloaded = new boolean[pieces];
-
         int expectedLength = ((int) Math.ceil(pieces / 8.0)) + 1;
 
         //System.out.println("expectedLength: " + expectedLength);
 
-        ByteBuffer buffer = ByteBuffer.wrap(bytes);
-
-        if (bytes.length != expectedLength + 4 || buffer.getInt(0) != expectedLength) {
+        if (bytes.limit() != expectedLength + 4 || bytes.getInt(0) != expectedLength) {
             System.out.println("Invalid bitfield, first byte not " + expectedLength);
             return new BitfieldResult(false, null);
         }
 
-        byte[] bitfieldBytes = Arrays.copyOfRange(bytes, 5, bytes.length);
-        //System.out.println("bf bytes: " + bitfieldBytes.length + ", " + Arrays.toString(bitfieldBytes));
-
-        StringBuilder bitsString = new StringBuilder();
-        for (byte b : bitfieldBytes) {
-            // format byte as 8 bits, ex -56 (200 unsigned) -> 11001000
-            String bits = String.format("%8s", Integer.toBinaryString(b & 0xFF)).replace(" ", "0");
-            //System.out.println(bits);
-            bitsString.append(bits);
-        }
-        //System.out.println(bitsString);
-
-        String bits = bitsString.toString();
-        for (int i = 0; i < pieces; i++) {
-            isPieceDownloaded[i] = bits.charAt(i) == '1';
-        }
-
-        return new BitfieldResult(true, isPieceDownloaded);
+        return new BitfieldResult(true, Bitfield.fromBytes(bytes, 5, pieces));
     }
 
     public static byte[] encodeHave(int index) {
@@ -471,72 +388,50 @@ public class Peer {
         return message;
     }
 
-    public static byte[] encodeBitfield(Boolean[] isPieceDownloaded) {
-        int numPieces = isPieceDownloaded.length;
-        int numBytes = (int) Math.ceil(numPieces / 8.0);
-        int numBits = numBytes * 8;
-
-        int length = numBytes + 1;
-
-        byte[] message = new byte[length + 4];
+    public static byte[] encodeBitfield(Bitfield pieces) {
+        int length = pieces.getByteLength() + 1;
 
-        ByteBuffer buffer = ByteBuffer.allocate(4);
-        buffer.putInt(length);
-        System.arraycopy(buffer.array(), 0, message, 0, 4);
-        message[4] = (byte) MessageType.bitfield.getValue();
-
-        BitSet bitfield = new BitSet(numBits);
-        for (int i = 0; i < numPieces; i++) {
-            bitfield.set(i, isPieceDownloaded[i]);
-        }
+        ByteBuffer message = ByteBuffer.allocate(length + 4);
+        message.putInt(length);
+        message.put((byte) MessageType.bitfield.getValue());
+        pieces.writeBytes(message);
 
-        BitSet reversed = new BitSet(numBits);
-        for (int i = 0; i < numBits; i++) {
-            reversed.set(i, bitfield.get(numBits - i - 1));
-        }
-
-        System.arraycopy(reversed.toByteArray(), 0, message, 5, reversed.length());
-
-        return message;
+        return message.array();
     }
 
     // Used for request and cancel message
-    public static RequestResult decodeRequest(byte[] bytes) {
+    public static RequestResult decodeRequest(ByteBuffer bytes) {
         int index = -1;
         int begin = -1;
         int length = -1;
 
-        ByteBuffer buffer = ByteBuffer.wrap(bytes);
-
-        if (bytes.length != 17 || buffer.getInt(0) != 13) {
+        if (bytes.limit() != 17 || bytes.getInt(0) != 13) {
             System.out.println("Invalid request/cancel");
             return new RequestResult(false, index, begin, length);
         }
 
-        index = buffer.getInt(5);
-        begin = buffer.getInt(9);
-        length = buffer.getInt(13);
+        index = bytes.getInt(5);
+        begin = bytes.getInt(9);
+        length = bytes.getInt(13);
 
         return new RequestResult(true, index, begin, length);
     }
 
-    public static PieceResult decodePiece(byte[] bytes) {
+    // The payload is copied out of the message into a buffer from pool
+    public static PieceResult decodePiece(ByteBuffer bytes, BlockPool pool) {
         int index = -1;
         int begin = -1;
-        byte[] data = new byte[0];
 
-        if (bytes.length < 13) {
+        if (bytes.limit() < 13 || bytes.getInt(0) + 4 != bytes.limit()) {
             System.out.println("Invalid piece");
-            return new PieceResult(false, index, begin, data);
+            return new PieceResult(false, index, begin, null);
         }
 
-        ByteBuffer buffer = ByteBuffer.wrap(bytes);
-
-        index = buffer.getInt(5);
-        begin = buffer.getInt(9);
-        int length = buffer.getInt(0) - 9;
-        data = new byte[length];
-        System.arraycopy(bytes, 13, data, 0, length);
+        index = bytes.getInt(5);
+        begin = bytes.getInt(9);
+        int length = bytes.getInt(0) - 9;
+        ByteBuffer data = pool.acquire(length);
+        data.put(bytes.slice(13, length)).flip();
 
         return new PieceResult(true, index, begin, data);
     }
@@ -559,10 +454,11 @@ public class Peer {
         return message;
     }
 
-    public static byte[] encodePiece(int index, int begin, byte[] data) {
-        int length = data.length + 9;
+    // Only the header, the block data is sent from its own buffer after it
+    public static byte[] encodePieceHeader(int index, int begin, int dataLength) {
+        int length = dataLength + 9;
 
-        byte[] message = new byte[length + 4];
+        byte[] message = new byte[13];
         ByteBuffer buffer = ByteBuffer.allocate(4);
         buffer.putInt(length);
         System.arraycopy(buffer.array(), 0, message, 0, 4);
@@ -571,7 +467,6 @@ public class Peer {
         System.arraycopy(buffer.array(), 0, message, 5, 4);
         buffer.clear().putInt(begin);
         System.arraycopy(buffer.array(), 0, message, 9, 4);
-        System.arraycopy(data, 0, message, 13, data.length);
 
         return message;
     }
@@ -633,13 +528,9 @@ public class Peer {
         sendBytes(encodeHave(index));
     }
 
-    public void sendBitfield(Boolean[] isPieceDownloaded) {
-        System.out.println(this + " -> bitfield " +
-                Arrays.stream(isPieceDownloaded)
-                        .map(b -> b ? "1" : "0")
-                        .collect(Collectors.joining())
-        );
-        sendBytes(encodeBitfield(isPieceDownloaded));
+    public void sendBitfield(Bitfield pieces) {
+        System.out.println(this + " -> bitfield " + pieces);
+        sendBytes(encodeBitfield(pieces));
     }
 
     public void sendRequest(MessageType type, int index, int begin, int length) {
@@ -647,30 +538,35 @@ public class Peer {
         sendBytes(encodeRequest(type, index, begin, length));
     }
 
-    public void sendPiece(int index, int begin, byte[] data) {
-        System.out.println(this + " -> piece " + index + ", " + begin + ", " + data.length);
-        sendBytes(encodePiece(index, begin, data));
-        uploaded += data.length;
+    // Sends a block mapped from disk, only the header is built on the heap
+    public void sendPiece(int index, int begin, ByteBuffer[] region) {
+        int length = 0;
+        for (ByteBuffer buffer : region) length += buffer.remaining();
+
+        System.out.println(this + " -> piece " + index + ", " + begin + ", " + length);
+        outbound.offer(ByteBuffer.wrap(encodePieceHeader(index, begin, length)));
+        for (ByteBuffer buffer : region) outbound.offer(buffer);
+        flush();
+        uploaded += length;
     }
 
     //--------------------------------------------------
     //               RECEIVING MESSAGES
     //--------------------------------------------------
 
-    private MessageType getMessageType(byte[] bytes) {
+    private MessageType getMessageType(ByteBuffer bytes) {
         if (!isHandshakeReceived) return MessageType.handshake;
 
-        ByteBuffer buffer = ByteBuffer.wrap(bytes);
-        if (bytes.length == 4 && buffer.getInt(0) == 0) {
+        if (bytes.limit() == 4 && bytes.getInt(0) == 0) {
             return MessageType.keepAlive;
         }
 
-        if (bytes.length > 4) return MessageType.fromValue(bytes[4]);
+        if (bytes.limit() > 4) return MessageType.fromValue(bytes.get(4));
 
         return MessageType.unknown;
     }
 
-    private void handleMessage(byte[] bytes) {
+    private void handleMessage(ByteBuffer bytes) {
         lastActive = Instant.now();
 
         MessageType type = getMessageType(bytes);
@@ -713,9 +609,9 @@ public class Peer {
             }
         }
         else if (type == MessageType.bitfield) {
-            BitfieldResult result = decodeBitfield(bytes, isPieceDownloaded.length);
+            BitfieldResult result = decodeBitfield(bytes, downloadedPieces.size());
             if (result.success) {
-                handleBitfield(result.isPieceDownloaded);
+                handleBitfield(result.pieces);
                 return;
             }
         }
@@ -728,7 +624,7 @@ public class Peer {
             }
         }
         else if (type == MessageType.piece) {
-            PieceResult result = decodePiece(bytes);
+            PieceResult result = decodePiece(bytes, torrent.blockPool);
             if (result.success) {
                 handlePiece(result.index, result.begin, result.data);
                 return;
@@ -749,6 +645,12 @@ public class Peer {
                 .collect(Collectors.joining());
     }
 
+    private String bytesToHexString(ByteBuffer bytes) {
+        return IntStream.range(0, bytes.limit())
+                .mapToObj(i -> String.format("%02x", bytes.get(i)))
+                .collect(Collectors.joining());
+    }
+
     private void handleHandshake(byte[] hash, String id) {
         System.out.println(this + " <- handshake");
 
@@ -761,7 +663,11 @@ public class Peer {
 
         this.id = id;
         isHandshakeReceived = true;
-        sendBitfield(torrent.isPieceVerified);
+        sendBitfield(torrent.verifiedPieces);
+
+        if (stateChangedListener != null) {
+            stateChangedListener.onStateChanged();
+        }
     }
 
     private void handleKeepAlive() {
@@ -775,6 +681,8 @@ public class Peer {
     private void handleChoke() {
         System.out.println(this + " <- choke");
         isChokeReceived = true;
+        // Choking discards everything we asked for, so it can go to other peers
+        torrent.requests.removeAll(this);
 
         if (stateChangedListener != null) {
             stateChangedListener.onStateChanged();
@@ -809,7 +717,15 @@ public class Peer {
     }
 
     private void handleHave(int index) {
-        isPieceDownloaded[index] = true;
+        if (index < 0 || index >= downloadedPieces.size()) {
+            System.out.println(this + " <- have for unknown piece " + index);
+            disconnect();
+            return;
+        }
+        synchronized (downloadedPieces) {
+            if (isDisconnected) return;
+            if (downloadedPieces.set(index)) torrent.availability.increment(index);
+        }
         System.out.println(this + " <- have " + index + " - " + getPiecesDownloadedCount() +
                 " available (" + getPiecesDownloaded() + ")"
         );
@@ -819,10 +735,13 @@ public class Peer {
         }
     }
 
-    private void handleBitfield(boolean[] isPieceDownloaded) {
-        for (int i = 0; i < torrent.getPieceCount(); i++) {
-            // Keep true if already true, otherwise set to passed param
-            this.isPieceDownloaded[i] = this.isPieceDownloaded[i] || isPieceDownloaded[i];
+    private void handleBitfield(Bitfield pieces) {
+        // Keep any pieces already announced with have, and only count the new ones
+        synchronized (downloadedPieces) {
+            if (isDisconnected) return;
+            for (int i = pieces.nextSet(0); i >= 0; i = pieces.nextSet(i + 1)) {
+                if (downloadedPieces.set(i)) torrent.availability.increment(i);
+            }
         }
 
         System.out.println(this + " <- bitfield " + getPiecesDownloadedCount() +
@@ -842,15 +761,37 @@ public class Peer {
         }
     }
 
-    private void handlePiece(int index, int begin, byte[] data) {
-        System.out.println(this + " <- piece " + index + ", " + begin + ", " + data.length);
-        downloaded += data.length;
+    private void handlePiece(int index, int begin, ByteBuffer data) {
+        System.out.println(this + " <- piece " + index + ", " + begin + ", " + data.remaining());
+
+        // Anything that isn't exactly one of our blocks would be written over its neighbours
+        if (!isValidBlock(index, begin, data.remaining())) {
+            System.out.println(this + " <- piece that doesn't match a block " + index + ", " + begin + ", " + data.remaining());
+            torrent.blockPool.release(data);
+            disconnect();
+            return;
+        }
+        downloaded += data.remaining();
+
+        RequestTable.Request request = torrent.requests.get(this, index, begin / torrent.blockSize);
+        pipeline.onBlockReceived(request != null ? System.nanoTime() - request.sentTime : -1, data.remaining());
+        isSnubbed = false;
 
         if (blockReceivedListener != null) {
             blockReceivedListener.onBlockReceived(new DataPackage(this, index, begin / torrent.blockSize, data));
+        } else {
+            torrent.blockPool.release(data);
         }
     }
 
+    private boolean isValidBlock(int index, int begin, int length) {
+        if (index < 0 || index >= torrent.getPieceCount()) return false;
+        if (begin < 0 || begin % torrent.blockSize != 0) return false;
+
+        int block = begin / torrent.blockSize;
+        return block < torrent.getBlockCount(index) && length == torrent.getBlockSize(index, block);
+    }
+
     private void handleCancel(int index, int begin, int length) {
         System.out.println(this + " <- cancel");
 
@@ -0,0 +1,17 @@
+import java.net.InetSocketAddress;
+
+/*
+A single connection to a peer, provided by the Transport.
+Reads are delivered through the peer's framer, writes are taken from its outbound queue.
+ */
+public interface PeerConnection {
+    InetSocketAddress getRemoteAddress();
+
+    // Begin reading, each read is followed by peer.handleFrames()
+    void start(Peer peer);
+
+    // Write out the peer's queued messages, safe to call from any thread
+    void flush();
+
+    void close();
+}
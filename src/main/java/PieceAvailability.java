@@ -0,0 +1,62 @@
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/*
+How many connected peers have each piece, kept up to date as peers announce pieces
+and disconnect, so rarity can be read per piece without going over every peer.
+ */
+public class PieceAvailability {
+    private final AtomicIntegerArray counts;
+    private EventListeners.AvailabilityChangedListener availabilityChangedListener;
+
+    public PieceAvailability(int pieceCount) {
+        counts = new AtomicIntegerArray(pieceCount);
+    }
+
+    public void setAvailabilityChangedListener(EventListeners.AvailabilityChangedListener listener) {
+        availabilityChangedListener = listener;
+    }
+
+    public int get(int piece) {
+        return counts.get(piece);
+    }
+
+    public void increment(int piece) {
+        counts.incrementAndGet(piece);
+        if (availabilityChangedListener != null) availabilityChangedListener.onAvailabilityChanged(piece, 1);
+    }
+
+    public void decrement(int piece) {
+        counts.decrementAndGet(piece);
+        if (availabilityChangedListener != null) availabilityChangedListener.onAvailabilityChanged(piece, -1);
+    }
+
+    // Removes every piece the peer had, when it disconnects
+    public void remove(Bitfield pieces) {
+        for (int i = pieces.nextSet(0); i >= 0; i = pieces.nextSet(i + 1)) {
+            decrement(i);
+        }
+    }
+
+    // Fraction of peers that don't have the piece, 0 if there are no peers
+    public double getRarity(int piece, int peerCount) {
+        if (peerCount <= 0) return 0;
+        return 1.0 - Math.min(get(piece), peerCount) / (double) peerCount;
+    }
+
+    /*
+    Number of pieces held by exactly n peers at index n, for monitoring.
+    Built from a snapshot of the counts, so it may be slightly out of date while peers change.
+     */
+    public int[] getHistogram() {
+        int max = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            max = Math.max(max, counts.get(i));
+        }
+
+        int[] histogram = new int[max + 1];
+        for (int i = 0; i < counts.length(); i++) {
+            histogram[Math.max(0, counts.get(i))]++;
+        }
+        return histogram;
+    }
+}
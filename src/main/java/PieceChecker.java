@@ -0,0 +1,91 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+Verifies every piece of a torrent against its hash using a pool of worker threads.
+Pieces are split into batches of consecutive pieces that never cross into another file,
+so each worker reads one stretch of one file front to back while the others do the same elsewhere.
+ */
+public class PieceChecker {
+    public static final long DEFAULT_BATCH_BYTES = 16L * 1024 * 1024;
+
+    private final Torrent torrent;
+    private final int threads;
+    private final long batchBytes;
+
+    public PieceChecker(Torrent torrent, int threads) {
+        this(torrent, threads, DEFAULT_BATCH_BYTES);
+    }
+
+    public PieceChecker(Torrent torrent, int threads, long batchBytes) {
+        this.torrent = torrent;
+        this.threads = Math.max(1, threads);
+        this.batchBytes = batchBytes;
+    }
+
+    // Blocks until every piece has been checked, listener may be null
+    public void checkAll(EventListeners.RecheckProgressListener listener) {
+        List<int[]> batches = getBatches();
+        if (batches.isEmpty()) return;
+
+        int total = torrent.getPieceCount();
+        AtomicInteger checked = new AtomicInteger();
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, batches.size()), runnable -> {
+            Thread thread = new Thread(runnable, "piece-checker");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int[] batch : batches) {
+                results.add(pool.submit(() -> {
+                    for (int piece = batch[0]; piece < batch[1]; piece++) {
+                        torrent.verify(piece);
+                        int count = checked.incrementAndGet();
+                        if (listener != null) listener.onRecheckProgress(count, total);
+                    }
+                }));
+            }
+
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // Ranges of pieces as {first, last + 1}
+    private List<int[]> getBatches() {
+        List<int[]> batches = new ArrayList<>();
+        int first = 0;
+        int firstFile = 0;
+        long size = 0;
+
+        for (int piece = 0; piece < torrent.getPieceCount(); piece++) {
+            int file = torrent.fileIndex.findFile((long) piece * torrent.pieceSize);
+
+            if (piece > first && (file != firstFile || size >= batchBytes)) {
+                batches.add(new int[] {first, piece});
+                first = piece;
+                firstFile = file;
+                size = 0;
+            }
+            size += torrent.getPieceSize(piece);
+        }
+        if (torrent.getPieceCount() > 0) batches.add(new int[] {first, torrent.getPieceCount()});
+
+        return batches;
+    }
+}
@@ -0,0 +1,137 @@
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+Hashes pieces while they download instead of reading them back from storage.
+Each piece in progress keeps a running SHA-1 over the blocks received in order so far.
+Blocks that arrive early are copied into pooled buffers until the gap before them is filled.
+If a block can't be buffered, or some blocks were written before the hasher saw them,
+the piece is left for the caller to check from storage once it's complete.
+ */
+public class PieceHasher {
+    public static final long DEFAULT_MAX_BUFFERED_BYTES = 64L * 1024 * 1024;
+
+    private final Torrent torrent;
+    private final long maxBufferedBytes;
+    private final ConcurrentHashMap<Integer, PieceState> pieces = new ConcurrentHashMap<>();
+    private final AtomicLong bufferedBytes = new AtomicLong();
+
+    private static class PieceState {
+        final MessageDigest digest;
+        final HashMap<Integer, ByteBuffer> pending = new HashMap<>();
+        int nextBlock = 0;
+        // Set once a block has been missed, the digest can't be completed after that
+        boolean isIncomplete;
+
+        PieceState(boolean isIncomplete) {
+            try {
+                digest = MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+            this.isIncomplete = isIncomplete;
+        }
+    }
+
+    public PieceHasher(Torrent torrent) {
+        this(torrent, DEFAULT_MAX_BUFFERED_BYTES);
+    }
+
+    public PieceHasher(Torrent torrent, long maxBufferedBytes) {
+        this.torrent = torrent;
+        this.maxBufferedBytes = maxBufferedBytes;
+    }
+
+    /*
+    Feeds a block of the piece, data itself is left untouched.
+    Returns the piece's hash once every block has gone through the digest, otherwise null.
+    A null return with every block acquired means the piece has to be checked from storage.
+     */
+    public byte[] add(int piece, int block, ByteBuffer data) {
+        // A piece first seen part way through may have blocks written before the hasher existed
+        PieceState state = pieces.computeIfAbsent(piece, p -> new PieceState(isAnyOtherBlockAcquired(p, block)));
+
+        synchronized (state) {
+            if (state.isIncomplete) return null;
+            // A block written twice may have changed, and only storage has the latest copy
+            if (block < state.nextBlock || state.pending.containsKey(block)) {
+                giveUp(state);
+                return null;
+            }
+
+            if (block > state.nextBlock) {
+                int length = data.remaining();
+                if (bufferedBytes.addAndGet(length) > maxBufferedBytes) {
+                    bufferedBytes.addAndGet(-length);
+                    giveUp(state);
+                    return null;
+                }
+                ByteBuffer copy = torrent.blockPool.acquire(length);
+                copy.put(data.duplicate()).flip();
+                state.pending.put(block, copy);
+                return null;
+            }
+
+            state.digest.update(data.duplicate());
+            state.nextBlock++;
+
+            // Drain whatever was waiting on this block
+            ByteBuffer next;
+            while ((next = state.pending.remove(state.nextBlock)) != null) {
+                state.digest.update(next);
+                release(next);
+                state.nextBlock++;
+            }
+
+            if (state.nextBlock < torrent.getBlockCount(piece)) return null;
+
+            pieces.remove(piece);
+            return state.digest.digest();
+        }
+    }
+
+    private boolean isAnyOtherBlockAcquired(int piece, int block) {
+        int acquired = torrent.getAcquiredBlockCount(piece);
+        return acquired > (torrent.isBlockAcquired(piece, block) ? 1 : 0);
+    }
+
+    private void giveUp(PieceState state) {
+        state.isIncomplete = true;
+        for (ByteBuffer buffer : state.pending.values()) {
+            release(buffer);
+        }
+        state.pending.clear();
+    }
+
+    private void release(ByteBuffer buffer) {
+        bufferedBytes.addAndGet(-buffer.limit());
+        torrent.blockPool.release(buffer);
+    }
+
+    // Starts following the piece from scratch, for when every block it has so far is about to be fed in
+    public void track(int piece) {
+        reset(piece);
+        pieces.put(piece, new PieceState(false));
+    }
+
+    // Drops any progress on the piece, e.g. once it's been checked some other way
+    public void reset(int piece) {
+        PieceState state = pieces.remove(piece);
+        if (state == null) return;
+        synchronized (state) {
+            giveUp(state);
+        }
+    }
+
+    public int getInProgressCount() {
+        return pieces.size();
+    }
+
+    public long getBufferedBytes() {
+        return bufferedBytes.get();
+    }
+}
@@ -0,0 +1,310 @@
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Set;
+
+/*
+Chooses which pieces to download next, rarest first.
+Every piece still needed sits in a bucket for the number of peers that have it, and moves
+between buckets in O(1) as availability changes, so nothing is ever re-sorted.
+Pieces that already have blocks are kept in a list of their own and offered before
+anything else so they finish sooner, and each bucket is scanned from a random point so
+peers don't all chase the same piece.
+Pieces with every block requested or acquired move to a third list until a request is
+dropped, so picks only offer pieces with something left to request. Endgame picks from
+that list instead.
+A pick looks at no more than MAX_PROBES pieces from the lists. A peer that has few of
+the pieces we need uses up the probes without filling the pick, so the rest comes from
+walking the pieces the peer has instead. That walk still skips over the peer's bitfield
+a word at a time, which is the only part of a pick that grows with the torrent.
+ */
+public class PiecePicker {
+    // Most pieces looked at from the lists, and then from the peer's bitfield, in one pick
+    private static final int MAX_PROBES = 512;
+
+    private final Random random = new Random();
+
+    // Availability as the picker last saw it, used to find the piece's bucket
+    private final int[] levels;
+    private final boolean[] isNeeded;
+    private final boolean[] isPartial;
+    private final boolean[] isFullyRequested;
+    // Requests dropped and blocks lost for each piece, so a piece isn't marked full on a stale look
+    private final int[] dropCounts;
+    // Where each needed piece is in whichever list holds it
+    private final int[] slots;
+
+    private PieceList[] buckets = new PieceList[0];
+    // Needed pieces that have blocks, they're in no bucket
+    private final PieceList partial = new PieceList();
+    // Needed pieces with nothing left to request, they're in no other list
+    private final PieceList fullyRequested = new PieceList();
+
+    private static class PieceList {
+        int[] pieces = new int[16];
+        int size = 0;
+
+        void add(int piece, int[] slots) {
+            if (size == pieces.length) pieces = Arrays.copyOf(pieces, size * 2);
+            slots[piece] = size;
+            pieces[size++] = piece;
+        }
+
+        // Swap the last piece into the gap
+        void remove(int piece, int[] slots) {
+            int slot = slots[piece];
+            int last = pieces[--size];
+            pieces[slot] = last;
+            slots[last] = slot;
+            slots[piece] = -1;
+        }
+    }
+
+    public PiecePicker(Torrent torrent) {
+        int pieceCount = torrent.getPieceCount();
+
+        levels = new int[pieceCount];
+        isNeeded = new boolean[pieceCount];
+        isPartial = new boolean[pieceCount];
+        isFullyRequested = new boolean[pieceCount];
+        dropCounts = new int[pieceCount];
+        slots = new int[pieceCount];
+        Arrays.fill(slots, -1);
+
+        // Added in random order so ties start out shuffled
+        int[] order = new int[pieceCount];
+        for (int i = 0; i < pieceCount; i++) {
+            int j = random.nextInt(i + 1);
+            order[i] = order[j];
+            order[j] = i;
+        }
+        for (int piece : order) {
+            isNeeded[piece] = true;
+            place(piece);
+        }
+    }
+
+    //----------------------------------------------------
+    //                     UPDATES
+    //----------------------------------------------------
+
+    // Called for every change in availability, changes from different peers may arrive in any order
+    public synchronized void onAvailabilityChanged(int piece, int change) {
+        if (!isInBucket(piece)) {
+            levels[piece] += change;
+            return;
+        }
+        unplace(piece);
+        levels[piece] += change;
+        place(piece);
+    }
+
+    // Verified pieces drop out, and come back if they're found to be bad later
+    public synchronized void setNeeded(int piece, boolean isNeeded) {
+        if (isNeeded == this.isNeeded[piece]) return;
+
+        if (isNeeded) {
+            this.isNeeded[piece] = true;
+            place(piece);
+        } else {
+            unplace(piece);
+            this.isNeeded[piece] = false;
+            isPartial[piece] = false;
+            isFullyRequested[piece] = false;
+        }
+    }
+
+    // Called once a piece has blocks, so it's picked ahead of untouched pieces
+    public synchronized void markPartial(int piece) {
+        if (!isNeeded[piece] || isPartial[piece]) return;
+        unplace(piece);
+        isPartial[piece] = true;
+        place(piece);
+    }
+
+    // Called when a piece loses its blocks after failing verification
+    public synchronized void clearPartial(int piece) {
+        dropCounts[piece]++;
+        if (!isNeeded[piece]) return;
+        unplace(piece);
+        isPartial[piece] = false;
+        isFullyRequested[piece] = false;
+        place(piece);
+    }
+
+    /*
+    Called once every block of the piece has been seen to be requested or acquired.
+    dropCount is getDropCount() from before the blocks were looked at, if anything was
+    dropped since then the look is stale and the piece stays where it is.
+     */
+    public synchronized void markFullyRequested(int piece, int dropCount) {
+        if (!isNeeded[piece] || isFullyRequested[piece] || dropCount != dropCounts[piece]) return;
+        unplace(piece);
+        isFullyRequested[piece] = true;
+        place(piece);
+    }
+
+    // Called when a request for one of the piece's blocks is dropped without the block arriving
+    public synchronized void onRequestDropped(int piece) {
+        dropCounts[piece]++;
+        if (!isFullyRequested[piece]) return;
+        unplace(piece);
+        isFullyRequested[piece] = false;
+        place(piece);
+    }
+
+    public synchronized int getDropCount(int piece) {
+        return dropCounts[piece];
+    }
+
+    //----------------------------------------------------
+    //                     PICKING
+    //----------------------------------------------------
+
+    // Up to max needed pieces the peer has with blocks left to request, best first
+    public int[] pick(Bitfield peerPieces, int max) {
+        return pick(peerPieces, max, Set.of());
+    }
+
+    // Excluded pieces are skipped, they still count as probes
+    public synchronized int[] pick(Bitfield peerPieces, int max, Set<Integer> exclude) {
+        int[] picked = new int[max];
+        int count = 0;
+        int probes = 0;
+
+        for (int i = 0; i < partial.size && count < max && probes < MAX_PROBES; i++, probes++) {
+            int piece = partial.pieces[i];
+            if (peerPieces.get(piece) && !exclude.contains(piece)) picked[count++] = piece;
+        }
+
+        // Nobody connected has the pieces in bucket 0
+        for (int level = 1; level < buckets.length && count < max && probes < MAX_PROBES; level++) {
+            PieceList bucket = buckets[level];
+            if (bucket.size == 0) continue;
+
+            int start = random.nextInt(bucket.size);
+            for (int i = 0; i < bucket.size && count < max && probes < MAX_PROBES; i++, probes++) {
+                int piece = bucket.pieces[(start + i) % bucket.size];
+                if (peerPieces.get(piece) && !exclude.contains(piece)) picked[count++] = piece;
+            }
+        }
+
+        if (count < max && probes == MAX_PROBES) count = pickFromPeer(peerPieces, picked, count, exclude);
+
+        return count == max ? picked : Arrays.copyOf(picked, count);
+    }
+
+    // Up to max pieces the peer has with every block already requested, for endgame
+    public synchronized int[] pickFullyRequested(Bitfield peerPieces, int max) {
+        int[] picked = new int[max];
+        int count = 0;
+
+        for (int i = 0; i < fullyRequested.size && i < MAX_PROBES && count < max; i++) {
+            int piece = fullyRequested.pieces[i];
+            if (peerPieces.get(piece)) picked[count++] = piece;
+        }
+        return count == max ? picked : Arrays.copyOf(picked, count);
+    }
+
+    /*
+    Fills the rest of the pick from the pieces the peer has, starting at a random one.
+    The pieces found within MAX_PROBES are ranked partial first, then rarest.
+     */
+    private int pickFromPeer(Bitfield peerPieces, int[] picked, int count, Set<Integer> exclude) {
+        int size = peerPieces.size();
+        if (size == 0) return count;
+
+        // Rank in the high bits and the piece in the low ones, so sorting ranks them
+        long[] candidates = new long[MAX_PROBES];
+        int found = 0;
+        int start = random.nextInt(size);
+        int piece = peerPieces.nextSet(start);
+        boolean isWrapped = false;
+
+        for (int probes = 0; probes < MAX_PROBES; probes++) {
+            if (piece < 0 && !isWrapped) {
+                isWrapped = true;
+                piece = peerPieces.nextSet(0);
+            }
+            if (piece < 0 || (isWrapped && piece >= start)) break;
+
+            if (isNeeded[piece] && !isFullyRequested[piece] && !exclude.contains(piece) &&
+                    !contains(picked, count, piece)) {
+                long rank = isPartial[piece] ? 0 : Math.max(0, levels[piece]) + 1L;
+                candidates[found++] = rank << 32 | piece;
+            }
+            piece = peerPieces.nextSet(piece + 1);
+        }
+
+        Arrays.sort(candidates, 0, found);
+        for (int i = 0; i < found && count < picked.length; i++) {
+            picked[count++] = (int) candidates[i];
+        }
+        return count;
+    }
+
+    private static boolean contains(int[] pieces, int count, int piece) {
+        for (int i = 0; i < count; i++) {
+            if (pieces[i] == piece) return true;
+        }
+        return false;
+    }
+
+    public synchronized int getNeededCount() {
+        int total = partial.size + fullyRequested.size;
+        for (PieceList bucket : buckets) total += bucket.size;
+        return total;
+    }
+
+    public synchronized int getPartialCount() {
+        return partial.size;
+    }
+
+    public synchronized int getFullyRequestedCount() {
+        return fullyRequested.size;
+    }
+
+    //----------------------------------------------------
+    //                      LISTS
+    //----------------------------------------------------
+
+    private boolean isInBucket(int piece) {
+        return isNeeded[piece] && !isPartial[piece] && !isFullyRequested[piece];
+    }
+
+    // Puts a needed piece in the list its state calls for
+    private void place(int piece) {
+        if (isFullyRequested[piece]) {
+            fullyRequested.add(piece, slots);
+        } else if (isPartial[piece]) {
+            partial.add(piece, slots);
+        } else {
+            getBucket(piece).add(piece, slots);
+        }
+    }
+
+    // Takes the piece out of whichever list holds it, before its state changes
+    private void unplace(int piece) {
+        if (!isNeeded[piece]) return;
+
+        if (isFullyRequested[piece]) {
+            fullyRequested.remove(piece, slots);
+        } else if (isPartial[piece]) {
+            partial.remove(piece, slots);
+        } else {
+            getBucket(piece).remove(piece, slots);
+        }
+    }
+
+    private PieceList getBucket(int piece) {
+        int level = Math.max(0, levels[piece]);
+        if (level >= buckets.length) {
+            int length = Math.max(level + 1, buckets.length * 2);
+            int oldLength = buckets.length;
+            buckets = Arrays.copyOf(buckets, length);
+            for (int i = oldLength; i < length; i++) {
+                buckets[i] = new PieceList();
+            }
+        }
+        return buckets[level];
+    }
+}
@@ -1,10 +1,12 @@
+import java.nio.ByteBuffer;
+
 public class PieceResult {
     boolean success;
     int index;
     int begin;
-    byte[] data;
+    ByteBuffer data;
 
-    public PieceResult(boolean success, int index, int begin, byte[] data) {
+    public PieceResult(boolean success, int index, int begin, ByteBuffer data) {
         this.success = success;
         this.index = index;
         this.begin = begin;
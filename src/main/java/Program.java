@@ -18,7 +18,8 @@ public class Program {
             return;
         }
 
-        client = new Client(port, args[1], args[2]);
+        // Further options are passed as system properties, see Settings
+        client = new Client(port, args[1], args[2], Settings.fromSystemProperties());
         client.start();
 
         // Run client.stop() if SIGINT signal received
@@ -0,0 +1,101 @@
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+Cache of whole verified pieces for seeding, kept off heap in direct buffers.
+Peers nearly always request every block of a piece in turn, so the first request reads
+the whole piece ahead and the rest are served from memory. Pieces are evicted least
+recently used first once the cap is reached.
+Blocks are handed out as slices of the cached buffer, so an evicted buffer is never reused,
+it's left to the garbage collector once the last slice has been sent.
+ */
+public class ReadCache {
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    private final Torrent torrent;
+    private final long maxBytes;
+    private final LinkedHashMap<Integer, ByteBuffer> pieces = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    public ReadCache(Torrent torrent, long maxBytes) {
+        this.torrent = torrent;
+        this.maxBytes = maxBytes;
+    }
+
+    // Returns the block ready to be sent, or null if it can't be cached and has to be read some other way
+    public ByteBuffer[] getBlock(int piece, int offset, int length) {
+        int pieceSize = torrent.getPieceSize(piece);
+        if (pieceSize > maxBytes) return null;
+
+        ByteBuffer buffer = get(piece);
+        if (buffer == null) {
+            // Read without the lock, so a miss doesn't hold up lookups for other pieces
+            buffer = ByteBuffer.allocateDirect(pieceSize);
+            if (!torrent.read((long) piece * torrent.pieceSize, buffer)) return null;
+            buffer = putIfAbsent(piece, buffer);
+        }
+
+        return new ByteBuffer[] {buffer.slice(offset, length).asReadOnlyBuffer()};
+    }
+
+    private synchronized ByteBuffer get(int piece) {
+        ByteBuffer buffer = pieces.get(piece);
+        if (buffer != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return buffer;
+    }
+
+    // Two threads can miss on the same piece at once, the first one to finish reading keeps its copy
+    private synchronized ByteBuffer putIfAbsent(int piece, ByteBuffer buffer) {
+        ByteBuffer cached = pieces.get(piece);
+        if (cached != null) return cached;
+
+        evict(buffer.capacity());
+        pieces.put(piece, buffer);
+        cachedBytes += buffer.capacity();
+        return buffer;
+    }
+
+    private void evict(long needed) {
+        Iterator<Map.Entry<Integer, ByteBuffer>> iterator = pieces.entrySet().iterator();
+        while (cachedBytes + needed > maxBytes && iterator.hasNext()) {
+            cachedBytes -= iterator.next().getValue().capacity();
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    public synchronized void clear() {
+        pieces.clear();
+        cachedBytes = 0;
+    }
+
+    public synchronized long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    public synchronized int getCachedPieceCount() {
+        return pieces.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+}
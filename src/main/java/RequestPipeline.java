@@ -0,0 +1,97 @@
+/*
+Works out how many block requests to keep outstanding with one peer.
+The target is the peer's bandwidth-delay product: a smoothed download rate times the
+shortest recent request-to-piece latency, in blocks. Latency measured while the peer
+has a queue includes the time spent waiting in it, so the shortest sample is used as
+the round trip. The extra headroom lets the rate, and with it the depth, keep growing
+until the link is full.
+ */
+public class RequestPipeline {
+    public static final int MIN_DEPTH = 2;
+    public static final int MAX_DEPTH = 128;
+
+    // Depth is this many times the bandwidth-delay product, plus MIN_DEPTH
+    private static final double HEADROOM = 1.5;
+    // Weight of each new rate sample
+    private static final double RATE_SMOOTHING = 0.3;
+    private static final long RATE_SAMPLE_NANOS = 500_000_000L;
+    // The minimum latency is forgotten after this long, in case the route changes
+    private static final long LATENCY_WINDOW_NANOS = 10_000_000_000L;
+
+    private final int blockSize;
+
+    private double rate = 0;
+    private long sampleStart = 0;
+    private long sampleBytes = 0;
+
+    private long latency = -1;
+    private long windowLatency = -1;
+    private long windowStart = 0;
+
+    // When the peer last went from no requests to some, and last sent a block
+    private long busySince = 0;
+    private long lastReceived = 0;
+
+    public RequestPipeline(int blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    // Time spent with nothing requested doesn't count against the rate, short gaps between requests do
+    public synchronized void onRequestsStarted() {
+        busySince = System.nanoTime();
+        if (busySince - lastReceived < RATE_SAMPLE_NANOS) return;
+        sampleStart = busySince;
+        sampleBytes = 0;
+    }
+
+    // Latency is the request-to-piece time in nanoseconds, or -1 if the block wasn't requested from this peer
+    public synchronized void onBlockReceived(long latency, int length) {
+        long now = System.nanoTime();
+        lastReceived = now;
+        if (latency >= 0) addLatency(latency, now);
+
+        sampleBytes += length;
+        long elapsed = now - sampleStart;
+        if (elapsed >= RATE_SAMPLE_NANOS) {
+            double sample = sampleBytes * 1e9 / elapsed;
+            rate = rate == 0 ? sample : rate + RATE_SMOOTHING * (sample - rate);
+            sampleStart = now;
+            sampleBytes = 0;
+        }
+    }
+
+    // True if nothing has arrived for timeout nanoseconds while requests were outstanding
+    public synchronized boolean isStalled(long timeout) {
+        return System.nanoTime() - Math.max(busySince, lastReceived) >= timeout;
+    }
+
+    private void addLatency(long sample, long now) {
+        if (latency < 0 || sample < latency) latency = sample;
+        if (windowLatency < 0 || sample < windowLatency) windowLatency = sample;
+
+        if (now - windowStart >= LATENCY_WINDOW_NANOS) {
+            latency = windowLatency;
+            windowLatency = sample;
+            windowStart = now;
+        }
+    }
+
+    // Number of requests to keep outstanding
+    public synchronized int getTargetDepth() {
+        if (rate == 0 || latency < 0) return MIN_DEPTH;
+
+        double blocksInFlight = rate * latency / 1e9 / blockSize;
+        long depth = (long) Math.ceil(blocksInFlight * HEADROOM) + MIN_DEPTH;
+        return (int) Math.min(MAX_DEPTH, depth);
+    }
+
+    // Bytes per second
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    // Shortest recent request-to-piece time in milliseconds, or -1 before the first piece
+    public synchronized double getLatency() {
+        return latency < 0 ? -1 : latency / 1e6;
+    }
+}
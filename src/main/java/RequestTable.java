@@ -0,0 +1,182 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/*
+Every block request in flight, keyed by the block, with the peer it was sent to and when.
+Normally a block is only requested from one peer, in endgame it may go to several at once.
+Requests are kept in the order they were sent so timeouts only look at the oldest ones,
+and each peer's requests are indexed so they can all be dropped when it chokes us.
+Dropping a request tells the picker its piece has a block to request again.
+Memory grows with the number of outstanding requests, not with pieces or peers.
+ */
+public class RequestTable {
+    public static class Request {
+        public final Peer peer;
+        public final int piece;
+        public final int block;
+        public final long sentTime;
+
+        Request(Peer peer, int piece, int block, long sentTime) {
+            this.peer = peer;
+            this.piece = piece;
+            this.block = block;
+            this.sentTime = sentTime;
+        }
+    }
+
+    private final Torrent torrent;
+    // Copies of each block's request, by Torrent.getBlockIndex(), almost always just one
+    private final HashMap<Integer, List<Request>> blockRequests = new HashMap<>();
+    private final HashMap<Peer, Map<Integer, Request>> peerRequests = new HashMap<>();
+    private final LinkedHashSet<Request> sendOrder = new LinkedHashSet<>();
+    // The last peer a block's request timed out on, until the block arrives
+    private final HashMap<Integer, Peer> timedOutPeers = new HashMap<>();
+
+    private long duplicates = 0;
+
+    public RequestTable(Torrent torrent) {
+        this.torrent = torrent;
+    }
+
+    // Returns false if the block is already requested
+    public boolean add(Peer peer, int piece, int block) {
+        return add(peer, piece, block, 1);
+    }
+
+    // Returns false if the peer already has the block requested, or maxCopies peers do
+    public synchronized boolean add(Peer peer, int piece, int block, int maxCopies) {
+        int index = torrent.getBlockIndex(piece, block);
+        List<Request> copies = blockRequests.get(index);
+        if (copies != null && copies.size() >= maxCopies) return false;
+
+        Map<Integer, Request> requests = peerRequests.computeIfAbsent(peer, x -> new HashMap<>());
+        if (requests.containsKey(index)) return false;
+        if (requests.isEmpty()) peer.pipeline.onRequestsStarted();
+
+        Request request = new Request(peer, piece, block, System.nanoTime());
+        requests.put(index, request);
+        if (copies == null) {
+            copies = new ArrayList<>(1);
+            blockRequests.put(index, copies);
+        } else {
+            duplicates++;
+        }
+        copies.add(request);
+        sendOrder.add(request);
+        return true;
+    }
+
+    // The peer's request for the block, or null
+    public synchronized Request get(Peer peer, int piece, int block) {
+        Map<Integer, Request> requests = peerRequests.get(peer);
+        return requests == null ? null : requests.get(torrent.getBlockIndex(piece, block));
+    }
+
+    public synchronized boolean isRequested(int piece, int block) {
+        return blockRequests.containsKey(torrent.getBlockIndex(piece, block));
+    }
+
+    // True if the block's request timed out on this peer, so it should go to another one if it can
+    public synchronized boolean hasTimedOut(Peer peer, int piece, int block) {
+        return timedOutPeers.get(torrent.getBlockIndex(piece, block)) == peer;
+    }
+
+    // Removes every copy of the block's request, once it has arrived
+    public synchronized List<Request> remove(int piece, int block) {
+        timedOutPeers.remove(torrent.getBlockIndex(piece, block));
+        List<Request> copies = blockRequests.remove(torrent.getBlockIndex(piece, block));
+        if (copies == null) return new ArrayList<>();
+
+        for (Request request : copies) {
+            removeFromPeer(request);
+            sendOrder.remove(request);
+        }
+        return copies;
+    }
+
+    // Removes the copies of the block's request sent to peers other than this one, once it has sent the block
+    public synchronized List<Request> removeOthers(Peer peer, int piece, int block) {
+        List<Request> removed = new ArrayList<>();
+        List<Request> copies = blockRequests.get(torrent.getBlockIndex(piece, block));
+        if (copies == null) return removed;
+
+        for (Request request : copies) {
+            if (request.peer != peer) removed.add(request);
+        }
+        for (Request request : removed) {
+            removeRequest(request);
+        }
+        return removed;
+    }
+
+    // Drops everything sent to the peer, when it chokes us, disconnects or stops sending
+    public synchronized List<Request> removeAll(Peer peer) {
+        List<Request> removed = new ArrayList<>();
+        Map<Integer, Request> requests = peerRequests.get(peer);
+        if (requests == null) return removed;
+
+        removed.addAll(requests.values());
+        for (Request request : removed) {
+            removeRequest(request);
+            torrent.picker.onRequestDropped(request.piece);
+        }
+        return removed;
+    }
+
+    // Drops requests sent before the cutoff, from System.nanoTime(), and remembers which peer each timed out on
+    public synchronized List<Request> removeSentBefore(long cutoff) {
+        List<Request> removed = new ArrayList<>();
+        Iterator<Request> iterator = sendOrder.iterator();
+        while (iterator.hasNext()) {
+            Request request = iterator.next();
+            if (request.sentTime - cutoff >= 0) break;
+
+            iterator.remove();
+            removeFromBlock(request);
+            removeFromPeer(request);
+            timedOutPeers.put(torrent.getBlockIndex(request.piece, request.block), request.peer);
+            torrent.picker.onRequestDropped(request.piece);
+            removed.add(request);
+        }
+        return removed;
+    }
+
+    private void removeRequest(Request request) {
+        sendOrder.remove(request);
+        removeFromBlock(request);
+        removeFromPeer(request);
+    }
+
+    private void removeFromBlock(Request request) {
+        int index = torrent.getBlockIndex(request.piece, request.block);
+        List<Request> copies = blockRequests.get(index);
+        if (copies == null) return;
+        copies.remove(request);
+        if (copies.isEmpty()) blockRequests.remove(index);
+    }
+
+    private void removeFromPeer(Request request) {
+        Map<Integer, Request> requests = peerRequests.get(request.peer);
+        if (requests == null) return;
+        requests.remove(torrent.getBlockIndex(request.piece, request.block));
+        if (requests.isEmpty()) peerRequests.remove(request.peer);
+    }
+
+    public synchronized int getCount(Peer peer) {
+        Map<Integer, Request> requests = peerRequests.get(peer);
+        return requests == null ? 0 : requests.size();
+    }
+
+    public synchronized int getCount() {
+        return sendOrder.size();
+    }
+
+    // Requests sent for blocks that were already requested from another peer
+    public synchronized long getDuplicateCount() {
+        return duplicates;
+    }
+}
@@ -0,0 +1,190 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/*
+Fast resume record saved next to a torrent's data so a restart can skip the full recheck.
+It holds which pieces were verified, which blocks of unfinished pieces were written, and the
+size and modification time of every file when it was saved. If any file has changed since,
+the record is ignored and the torrent is rechecked as usual.
+ */
+public class ResumeData {
+    public byte[] infoHash;
+    public byte[] verifiedPieces;
+    public TreeMap<Integer, byte[]> acquiredBlocks = new TreeMap<>();
+    public long[] fileSizes;
+    public long[] fileModifiedTimes;
+
+    /*
+    Captures which pieces and blocks the torrent has. The files are recorded separately afterwards,
+    once storage has been flushed, so anything written in between only makes the record stricter.
+     */
+    public static ResumeData capture(Torrent torrent) {
+        ResumeData data = new ResumeData();
+        data.infoHash = torrent.infoHash;
+        data.verifiedPieces = torrent.verifiedPieces.toBytes();
+
+        for (int i = 0; i < torrent.getPieceCount(); i++) {
+            // Cached blocks haven't reached the files yet
+            if (torrent.isPieceVerified(i) || torrent.writeCache.contains(i)) continue;
+            if (torrent.getAcquiredBlockCount(i) == 0) continue;
+
+            Bitfield blocks = new Bitfield(torrent.getBlockCount(i));
+            for (int j = 0; j < blocks.size(); j++) {
+                if (torrent.isBlockAcquired(i, j)) blocks.set(j);
+            }
+            data.acquiredBlocks.put(i, blocks.toBytes());
+        }
+        return data;
+    }
+
+    public void recordFiles(FileIndex index) {
+        fileSizes = new long[index.getFileCount()];
+        fileModifiedTimes = new long[index.getFileCount()];
+        for (int i = 0; i < index.getFileCount(); i++) {
+            fileSizes[i] = getSize(index.getPath(i));
+            fileModifiedTimes[i] = getModifiedTime(index.getPath(i));
+        }
+    }
+
+    // True if this record is for the torrent and none of its files have changed since
+    public boolean matches(Torrent torrent, FileIndex index) {
+        if (!Arrays.equals(infoHash, torrent.infoHash)) return false;
+        if (verifiedPieces.length != (torrent.getPieceCount() + 7) / 8) return false;
+        if (fileSizes.length != index.getFileCount()) return false;
+
+        for (int i = 0; i < index.getFileCount(); i++) {
+            if (fileSizes[i] != getSize(index.getPath(i))) return false;
+            if (fileModifiedTimes[i] != getModifiedTime(index.getPath(i))) return false;
+        }
+        return true;
+    }
+
+    public void apply(Torrent torrent) {
+        Bitfield pieces = Bitfield.fromBytes(verifiedPieces, torrent.getPieceCount());
+        for (int i = 0; i < torrent.getPieceCount(); i++) {
+            int first = torrent.getBlockIndex(i, 0);
+            int blockCount = torrent.getBlockCount(i);
+
+            if (pieces.get(i)) {
+                torrent.verifiedPieces.set(i);
+                torrent.acquiredBlocks.set(first, first + blockCount);
+                torrent.picker.setNeeded(i, false);
+                continue;
+            }
+
+            byte[] bytes = acquiredBlocks.get(i);
+            if (bytes == null || bytes.length * 8 < blockCount) continue;
+            Bitfield blocks = Bitfield.fromBytes(bytes, blockCount);
+            for (int j = 0; j < blockCount; j++) {
+                if (blocks.get(j)) torrent.acquiredBlocks.set(first + j);
+            }
+            if (!blocks.isEmpty()) torrent.picker.markPartial(i);
+        }
+    }
+
+    //----------------------------------------------------
+    //                  SAVING / LOADING
+    //----------------------------------------------------
+
+    // Written to a temporary file first so a crash part way through never leaves a broken record
+    public void save(Path path) {
+        HashMap<String, Object> dict = new HashMap<>();
+        dict.put("info hash", infoHash);
+        dict.put("pieces", verifiedPieces);
+
+        HashMap<String, Object> partial = new HashMap<>();
+        for (Map.Entry<Integer, byte[]> entry : acquiredBlocks.entrySet()) {
+            partial.put(String.valueOf(entry.getKey()), entry.getValue());
+        }
+        dict.put("partial", partial);
+
+        List<Object> files = new ArrayList<>();
+        for (int i = 0; i < fileSizes.length; i++) {
+            HashMap<String, Object> file = new HashMap<>();
+            file.put("length", fileSizes[i]);
+            file.put("mtime", fileModifiedTimes[i]);
+            files.add(file);
+        }
+        dict.put("files", files);
+
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            Path dir = path.getParent();
+            if (dir != null && !Files.exists(dir)) Files.createDirectories(dir);
+
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp))) {
+                BEncoding.encode(dict, out);
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (Exception e) {
+            System.out.println("Failed to save resume data: " + e.getMessage());
+        }
+    }
+
+    // Returns null if there's no usable record
+    @SuppressWarnings("unchecked")
+    public static ResumeData load(Path path) {
+        if (!Files.exists(path)) return null;
+
+        try {
+            TreeMap<String, Object> dict = (TreeMap<String, Object>) BEncoding.decode(Files.readAllBytes(path));
+
+            ResumeData data = new ResumeData();
+            data.infoHash = (byte[]) dict.get("info hash");
+            data.verifiedPieces = (byte[]) dict.get("pieces");
+
+            TreeMap<String, Object> partial = (TreeMap<String, Object>) dict.get("partial");
+            if (partial != null) {
+                for (Map.Entry<String, Object> entry : partial.entrySet()) {
+                    data.acquiredBlocks.put(Integer.parseInt(entry.getKey()), (byte[]) entry.getValue());
+                }
+            }
+
+            List<Object> files = (List<Object>) dict.get("files");
+            data.fileSizes = new long[files.size()];
+            data.fileModifiedTimes = new long[files.size()];
+            for (int i = 0; i < files.size(); i++) {
+                TreeMap<String, Object> file = (TreeMap<String, Object>) files.get(i);
+                data.fileSizes[i] = (long) file.get("length");
+                data.fileModifiedTimes[i] = (long) file.get("mtime");
+            }
+
+            if (data.infoHash == null || data.verifiedPieces == null) return null;
+            return data;
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Ignoring resume data: " + e.getMessage());
+            return null;
+        }
+    }
+
+    //----------------------------------------------------
+    //                      HELPERS
+    //----------------------------------------------------
+
+    // Missing files are recorded as -1 so they have to still be missing to match
+    private static long getSize(Path path) {
+        try {
+            return Files.size(path);
+        } catch (NoSuchFileException e) {
+            return -1;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static long getModifiedTime(Path path) {
+        try {
+            return Files.getLastModifiedTime(path).toMillis();
+        } catch (NoSuchFileException e) {
+            return -1;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+import java.time.Duration;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+Runs work on a single thread, so passes never overlap and need no guards of their own.
+Work is queued by events as Tasks. Triggering a task that's already queued does nothing,
+since the queued run will see whatever caused the trigger, and triggering it while it runs
+queues exactly one more run, so no event is lost and bursts collapse into one pass.
+Timers are only for things that happen with nothing to trigger them, like timeouts.
+ */
+public class Scheduler {
+    private static final int SHUTDOWN_TIMEOUT_SECONDS = 10;
+
+    private final ScheduledExecutorService executor;
+
+    public Scheduler(String name) {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Timers and delayed triggers don't outlive shutdown
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        this.executor = executor;
+    }
+
+    public class Task {
+        private final Runnable action;
+        private final AtomicBoolean isQueued = new AtomicBoolean(false);
+
+        private Task(Runnable action) {
+            this.action = action;
+        }
+
+        public void trigger() {
+            if (isQueued.compareAndSet(false, true)) execute(this::run);
+        }
+
+        // Triggers the task after the delay, an earlier trigger still runs it straight away
+        public void triggerLater(Duration delay) {
+            schedule(this::trigger, delay);
+        }
+
+        private void run() {
+            // Cleared first, anything that happens during the run queues another
+            isQueued.set(false);
+            action.run();
+        }
+    }
+
+    public Task task(Runnable action) {
+        return new Task(action);
+    }
+
+    // Work arriving after shutdown is dropped
+    public void execute(Runnable action) {
+        try {
+            executor.execute(() -> runSafely(action));
+        } catch (RejectedExecutionException ignored) {
+        }
+    }
+
+    public void schedule(Runnable action, Duration delay) {
+        try {
+            executor.schedule(() -> runSafely(action), delay.toNanos(), TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException ignored) {
+        }
+    }
+
+    // Runs the action every period, starting after one period
+    public void every(Duration period, Runnable action) {
+        long nanos = period.toNanos();
+        try {
+            executor.scheduleWithFixedDelay(() -> runSafely(action), nanos, nanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException ignored) {
+        }
+    }
+
+    // An exception would otherwise cancel a timer without a word
+    private static void runSafely(Runnable action) {
+        try {
+            action.run();
+        } catch (RuntimeException e) {
+            System.out.println("Scheduled task failed: " + e);
+        }
+    }
+
+    // Lets work already queued finish rather than interrupting it, a write cut short would close its file
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                System.out.println("Scheduled tasks still running after " + SHUTDOWN_TIMEOUT_SECONDS + "s");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,292 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+Transport built on a fixed number of Selector event loops.
+Each peer is pinned to one loop by its address, and that loop's thread does all reading,
+message handling and writing for it. Other threads only queue messages and wake the loop.
+ */
+public class SelectorTransport implements Transport {
+
+    private final EventLoop[] loops;
+    private ServerSocketChannel serverSocketChannel;
+
+    public SelectorTransport(int loopCount) {
+        loops = new EventLoop[Math.max(1, loopCount)];
+        for (int i = 0; i < loops.length; i++) {
+            try {
+                loops[i] = new EventLoop(i);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            loops[i].thread.start();
+        }
+    }
+
+    // The same address always lands on the same loop
+    private EventLoop loopFor(InetSocketAddress address) {
+        return loops[Math.floorMod(address.hashCode(), loops.length)];
+    }
+
+    @Override
+    public void listen(int port, EventListeners.ConnectionAcceptedListener listener) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        serverSocketChannel = server;
+
+        loops[0].register(server, SelectionKey.OP_ACCEPT, new Acceptor(server, listener));
+    }
+
+    @Override
+    public void stopListening() throws IOException {
+        if (serverSocketChannel == null) return;
+        serverSocketChannel.close();
+        serverSocketChannel = null;
+    }
+
+    @Override
+    public void connect(Peer peer) {
+        try {
+            SocketChannel channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            EventLoop loop = loopFor(peer.inetSocketAddress);
+            SelectorConnection connection = new SelectorConnection(channel, loop, peer.inetSocketAddress);
+            connection.peer = peer;
+
+            loop.execute(() -> {
+                try {
+                    if (channel.connect(peer.inetSocketAddress)) {
+                        connection.finishConnect();
+                    } else {
+                        connection.key = channel.register(loop.selector, SelectionKey.OP_CONNECT, connection);
+                    }
+                } catch (IOException e) {
+                    System.out.println("Connection to " + peer.inetSocketAddress + " failed: " + e.getMessage());
+                    connection.close();
+                    peer.disconnect();
+                }
+            });
+        } catch (IOException e) {
+            peer.disconnect();
+        }
+    }
+
+    // Attached to each selection key
+    private interface Handler {
+        void handle(SelectionKey key) throws IOException;
+
+        void failed(Exception e);
+    }
+
+    private class Acceptor implements Handler {
+        private final ServerSocketChannel server;
+        private final EventListeners.ConnectionAcceptedListener listener;
+
+        Acceptor(ServerSocketChannel server, EventListeners.ConnectionAcceptedListener listener) {
+            this.server = server;
+            this.listener = listener;
+        }
+
+        @Override
+        public void handle(SelectionKey key) throws IOException {
+            SocketChannel channel;
+            while ((channel = server.accept()) != null) {
+                channel.configureBlocking(false);
+                InetSocketAddress remoteAddress = (InetSocketAddress) channel.getRemoteAddress();
+                listener.onConnectionAccepted(new SelectorConnection(channel, loopFor(remoteAddress), remoteAddress));
+            }
+        }
+
+        @Override
+        public void failed(Exception e) {
+            System.out.println("Failed to accept connection: " + e.getMessage());
+        }
+    }
+
+    private static class SelectorConnection implements PeerConnection, Handler {
+        private final SocketChannel channel;
+        private final EventLoop loop;
+        private final InetSocketAddress remoteAddress;
+        private final AtomicBoolean isFlushQueued = new AtomicBoolean(false);
+        private Peer peer;
+        private SelectionKey key;
+
+        SelectorConnection(SocketChannel channel, EventLoop loop, InetSocketAddress remoteAddress) {
+            this.channel = channel;
+            this.loop = loop;
+            this.remoteAddress = remoteAddress;
+        }
+
+        @Override
+        public InetSocketAddress getRemoteAddress() {
+            return remoteAddress;
+        }
+
+        @Override
+        public void start(Peer peer) {
+            this.peer = peer;
+            loop.execute(() -> {
+                try {
+                    if (key == null) {
+                        key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+                    } else {
+                        key.interestOps(SelectionKey.OP_READ);
+                    }
+                    write();
+                } catch (IOException | CancelledKeyException e) {
+                    failed(e);
+                }
+            });
+        }
+
+        private void finishConnect() {
+            peer.onConnected(this);
+        }
+
+        @Override
+        public void handle(SelectionKey key) throws IOException {
+            if (key.isConnectable()) {
+                if (!channel.finishConnect()) return;
+                key.interestOps(0);
+                finishConnect();
+                return;
+            }
+            if (key.isReadable()) read();
+            if (key.isValid() && key.isWritable()) write();
+        }
+
+        private void read() throws IOException {
+            MessageFramer framer = peer.getFramer();
+            int read = channel.read(framer.writable());
+            if (read < 0) {
+                peer.disconnect();
+                return;
+            }
+            framer.onRead(read);
+            peer.handleFrames();
+        }
+
+        // Write until the queue is empty or the socket is full, then wait for OP_WRITE
+        private void write() throws IOException {
+            if (key == null || !key.isValid()) return;
+
+            OutboundQueue outbound = peer.getOutbound();
+            ByteBuffer[] batch;
+            while ((batch = outbound.nextBatch()) != null) {
+                long written = channel.write(batch);
+                outbound.complete(written);
+                if (batch[batch.length - 1].hasRemaining()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+
+        @Override
+        public void flush() {
+            if (peer == null) return;
+
+            if (Thread.currentThread() == loop.thread) {
+                try {
+                    write();
+                } catch (IOException | CancelledKeyException e) {
+                    failed(e);
+                }
+                return;
+            }
+
+            // One queued flush covers every message added before it runs
+            if (isFlushQueued.compareAndSet(false, true)) {
+                loop.execute(() -> {
+                    isFlushQueued.set(false);
+                    flush();
+                });
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.out.println("Client wasn't open");
+            }
+        }
+
+        @Override
+        public void failed(Exception e) {
+            System.out.println("Connection to " + remoteAddress + " failed: " + e.getMessage());
+            close();
+            if (peer != null) peer.disconnect();
+        }
+    }
+
+    private static class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        EventLoop(int index) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, "event-loop-" + index);
+            thread.setDaemon(true);
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void register(SelectableChannel channel, int ops, Handler handler) {
+            execute(() -> {
+                try {
+                    channel.register(selector, ops, handler);
+                } catch (ClosedChannelException e) {
+                    handler.failed(e);
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            while (selector.isOpen()) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    System.out.println("Event loop failed: " + e.getMessage());
+                    return;
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        System.out.println("Event loop task failed: " + e);
+                    }
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+
+                    Handler handler = (Handler) key.attachment();
+                    try {
+                        handler.handle(key);
+                    } catch (IOException | RuntimeException e) {
+                        handler.failed(e);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/*
+Startup options, read from system properties prefixed with "bt."
+e.g. java -Dbt.transport=selector -Dbt.eventLoops=4 Program ...
+ */
+public class Settings {
+    // "async" for AsynchronousSocketChannel callbacks, "selector" for Selector event loops,
+    // "blocking" for blocking loops on virtual threads
+    public String transport = "async";
+    public int eventLoops = Runtime.getRuntime().availableProcessors();
+    // Threads the blocking transport runs its loops on, "virtual" or "platform"
+    public String blockingThreads = "virtual";
+
+    // "file" for positional reads and writes on cached channels, "mapped" for memory mapped files,
+    // "memory" to keep everything in RAM without touching the disk
+    public String storage = "file";
+
+    // Threads used to check existing data against the piece hashes
+    public int hashThreads = Runtime.getRuntime().availableProcessors();
+
+    // Bytes of downloading pieces held in memory before being written, 0 writes every block straight away
+    public long writeCacheSize = WriteCache.DEFAULT_MAX_BYTES;
+
+    // Bytes of whole pieces kept in memory for seeding, 0 sends every block straight from storage
+    public long readCacheSize = ReadCache.DEFAULT_MAX_BYTES;
+
+    // Seconds between saves of the fast resume record while running
+    public int resumeInterval = 60;
+
+    // Bytes per second of block requests sent to all peers together, 0 for no limit
+    public long maxDownloadRate = 0;
+
+    // Files kept open per torrent
+    public int maxOpenFiles = FileChannelCache.DEFAULT_MAX_OPEN;
+
+    public static Settings fromSystemProperties() {
+        Settings settings = new Settings();
+        settings.transport = System.getProperty("bt.transport", settings.transport);
+        settings.eventLoops = Integer.getInteger("bt.eventLoops", settings.eventLoops);
+        settings.blockingThreads = System.getProperty("bt.blockingThreads", settings.blockingThreads);
+        settings.storage = System.getProperty("bt.storage", settings.storage);
+        settings.hashThreads = Integer.getInteger("bt.hashThreads", settings.hashThreads);
+        settings.writeCacheSize = Long.getLong("bt.writeCacheSize", settings.writeCacheSize);
+        settings.readCacheSize = Long.getLong("bt.readCacheSize", settings.readCacheSize);
+        settings.resumeInterval = Integer.getInteger("bt.resumeInterval", settings.resumeInterval);
+        settings.maxOpenFiles = Integer.getInteger("bt.maxOpenFiles", settings.maxOpenFiles);
+        settings.maxDownloadRate = Long.getLong("bt.maxDownloadRate", settings.maxDownloadRate);
+        return settings;
+    }
+}
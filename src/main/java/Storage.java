@@ -0,0 +1,51 @@
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+/*
+Where a torrent's data lives, addressed by offset into the torrent as a whole.
+Implementations are chosen at startup with Settings.storage.
+ */
+public interface Storage {
+    // Fills dst up to its limit, returns false if the data doesn't exist yet
+    boolean read(long start, ByteBuffer dst);
+
+    // Writes src from its position to its limit, src itself is left untouched
+    void write(long start, ByteBuffer src);
+
+    // Buffers holding the range that can be sent as they are, or null if that isn't possible
+    ByteBuffer[] map(long start, int length);
+
+    // Feeds the range into the digest, returns false if the data doesn't exist yet
+    default boolean hash(long start, int length, MessageDigest digest) {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        if (!read(start, buffer)) return false;
+        buffer.flip();
+        digest.update(buffer);
+        return true;
+    }
+
+    // Makes sure everything written so far has reached the files
+    default void flush() {
+    }
+
+    // True if reads are already served from memory, so caching them again would only waste it
+    default boolean isMemoryBacked() {
+        return false;
+    }
+
+    // False if the data is lost once the storage is closed, so it can't be resumed
+    default boolean isPersistent() {
+        return true;
+    }
+
+    void close();
+
+    static Storage create(Settings settings, FileIndex index) {
+        return switch (settings.storage) {
+            case "file" -> new FileStorage(index, settings.maxOpenFiles);
+            case "mapped" -> new MappedStorage(index);
+            case "memory" -> new MemoryStorage(index.getTotalSize());
+            default -> throw new IllegalArgumentException("Unknown storage " + settings.storage);
+        };
+    }
+}
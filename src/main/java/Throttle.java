@@ -4,6 +4,8 @@ import java.util.ArrayList;
 import java.util.List;
 
 public class Throttle {
+    public static final long UNLIMITED = Long.MAX_VALUE;
+
     public long maxSize;
     public Duration maxWindow;
 
@@ -20,22 +22,33 @@ public class Throttle {
     private final Object lock = new Object();
     private final List<Item> items = new ArrayList<>();
 
-    public Throttle(int maxSize, Duration maxWindow) {
+    public Throttle(long maxSize, Duration maxWindow) {
         this.maxSize = maxSize;
         this.maxWindow = maxWindow;
     }
 
     public void add(long size) {
+        if (maxSize == UNLIMITED) return;
         synchronized (lock) {
             items.add(new Item(Instant.now(), size));
         }
     }
 
     public boolean isThrottled() {
+        if (maxSize == UNLIMITED) return false;
         synchronized (lock) {
             Instant cutoff = Instant.now().minus(maxWindow);
             items.removeIf(x -> x.time.isBefore(cutoff));
             return items.stream().mapToLong(x -> x.size).sum() >= maxSize;
         }
     }
+
+    // Time until the oldest item leaves the window
+    public Duration getDelay() {
+        synchronized (lock) {
+            if (items.isEmpty()) return Duration.ZERO;
+            Duration delay = Duration.between(Instant.now(), items.get(0).time.plus(maxWindow));
+            return delay.isNegative() ? Duration.ZERO : delay;
+        }
+    }
 }
@@ -1,10 +1,13 @@
 import java.io.*;
 import java.net.InetSocketAddress;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.time.Instant;
@@ -13,7 +16,6 @@ import java.time.ZonedDateTime;
 import java.util.*;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 
 public class Torrent {
     public String name;
@@ -30,35 +32,38 @@ public class Torrent {
 
     public int blockSize;
     public int pieceSize;
-    public long getTotalSize() {
-        long totalSize = 0;
-        for (FileItem file : files) {
-            totalSize += file.size;
-        }
-        return totalSize;
-    }
+    // Summed once by the file index, piece and block sizes ask for it on every call
+    public long getTotalSize() { return fileIndex.getTotalSize(); }
     public String getPieceSizeStr() { return String.valueOf(pieceSize); }
     public String getTotalSizeStr() { return String.valueOf(getTotalSize()); }
 
     public byte[][] pieceHashes;
     public int getPieceCount() { return pieceHashes.length; }
-    public Boolean[] isPieceVerified;
-    public Boolean[][] isBlockAcquired;
-
-    public String getVerifiedPiecesStr() {
-        return Arrays.stream(isPieceVerified).map(b -> b ? "1" : "0")
-                .collect(Collectors.joining());
-    }
-    public int getVerifiedPiecesCount() {
-        return (int) IntStream.range(0, isPieceVerified.length)
-                .filter(i -> isPieceVerified[i])
-                .count();
+    public Bitfield verifiedPieces;
+    // How many connected peers have each piece
+    public PieceAvailability availability;
+    public PiecePicker picker;
+    // Block requests in flight to every peer
+    public RequestTable requests;
+    // One bit per block of the whole torrent, see getBlockIndex()
+    public Bitfield acquiredBlocks;
+    public boolean isPieceVerified(int piece) { return verifiedPieces.get(piece); }
+    public boolean isBlockAcquired(int piece, int block) { return acquiredBlocks.get(getBlockIndex(piece, block)); }
+    public int getAcquiredBlockCount(int piece) {
+        int first = getBlockIndex(piece, 0);
+        return acquiredBlocks.count(first, first + getBlockCount(piece));
     }
+    public boolean isPieceAcquired(int piece) { return getAcquiredBlockCount(piece) == getBlockCount(piece); }
+
+    public String getVerifiedPiecesStr() { return verifiedPieces.toString(); }
+    public int getVerifiedPiecesCount() { return verifiedPieces.count(); }
     public double getVerifiedRatio() { return (double) getVerifiedPiecesCount() / getPieceCount(); }
-    public boolean isCompleted() { return getVerifiedPiecesCount() == getPieceCount(); }
+    public boolean isCompleted() { return verifiedPieces.isAll(); }
     public boolean hasStarted() { return getVerifiedPiecesCount() > 0; }
 
     public long uploaded = 0;
+    // Blocks that arrived after another copy already had, mostly from endgame duplicates
+    public long wastedBytes = 0;
     //TODO apparently this is wrong
     public long downloaded() { return (long) pieceSize * (long) getVerifiedPiecesCount(); }
     public long remaining() { return getTotalSize() - downloaded(); }
@@ -76,6 +81,15 @@ public class Torrent {
         return (int) Math.ceil((double) getPieceSize(piece) / (double) blockSize);
     }
 
+    // Position of the block among all the blocks of the torrent, only the last piece has fewer
+    public int getBlockIndex(int piece, int block) {
+        return piece * getBlockCount(0) + block;
+    }
+
+    public int getTotalBlockCount() {
+        return getBlockIndex(getPieceCount() - 1, getBlockCount(getPieceCount() - 1));
+    }
+
     // The last block may not be the full size
     public int getBlockSize(int piece, int block) {
         if (block == getBlockCount(piece) - 1) {
@@ -108,26 +122,42 @@ public class Torrent {
         this.peerListUpdatedListener = listener;
     }
 
-    private final Object[] fileWriteLocks;
-    private static final MessageDigest sha1;
-    static {
+    public final Storage storage;
+    public final FileIndex fileIndex;
+    public final PieceHasher hasher;
+    public final WriteCache writeCache;
+    public final ReadCache readCache;
+    public final BlockPool blockPool;
+    // MessageDigest isn't thread safe, so every thread hashing pieces gets its own
+    private static final ThreadLocal<MessageDigest> sha1 = ThreadLocal.withInitial(() -> {
         try {
-            sha1 = MessageDigest.getInstance("SHA-1");
+            return MessageDigest.getInstance("SHA-1");
         } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException(e);
         }
-    }
+    });
 
     public Torrent(String name, String downloadDirectory, List<FileItem> files, List<String> trackers,
                    int pieceSize, byte[] pieceHashes, int blockSize, Boolean isPrivate)
+    {
+        this(name, downloadDirectory, files, trackers, pieceSize, pieceHashes, blockSize, isPrivate, null, new Settings());
+    }
+
+    // infoHash should be the hash of the original info dictionary when loading an existing torrent
+    public Torrent(String name, String downloadDirectory, List<FileItem> files, List<String> trackers,
+                   int pieceSize, byte[] pieceHashes, int blockSize, Boolean isPrivate, byte[] infoHash,
+                   Settings settings)
     {
         this.name = name;
         this.downloadDirectory = downloadDirectory;
         this.files = files;
-        fileWriteLocks = new Object[this.files.size()];
-        for (int i = 0; i < this.files.size(); i++) {
-            fileWriteLocks[i] = new Object();
+
+        Path[] filePaths = new Path[files.size()];
+        for (int i = 0; i < files.size(); i++) {
+            filePaths[i] = Path.of(downloadDirectory, getFileDirectory() + files.get(i).path);
         }
+        fileIndex = new FileIndex(files, filePaths);
+        storage = Storage.create(settings, fileIndex);
 
         if (trackers != null) {
             for (String url : trackers) {
@@ -140,17 +170,20 @@ public class Torrent {
         this.pieceSize = pieceSize;
         this.blockSize = blockSize;
         this.isPrivate = isPrivate;
+        blockPool = new BlockPool(blockSize, BlockPool.DEFAULT_MAX_POOLED, true);
+        hasher = new PieceHasher(this);
+        writeCache = new WriteCache(this, settings.writeCacheSize);
+        readCache = new ReadCache(this, storage.isMemoryBacked() ? 0 : settings.readCacheSize);
 
         int count = (int) Math.ceil((double) getTotalSize() / (double) pieceSize);
 
         this.pieceHashes = new byte[count][];
-        isPieceVerified = new Boolean[count];
-        isBlockAcquired = new Boolean[count][];
-
-        for (int i = 0; i < getPieceCount(); i++) {
-            isBlockAcquired[i] = new Boolean[getBlockCount(i)];
-            Arrays.fill(isBlockAcquired[i], false);
-        }
+        verifiedPieces = new Bitfield(count);
+        availability = new PieceAvailability(count);
+        acquiredBlocks = new Bitfield(count == 0 ? 0 : getTotalBlockCount());
+        picker = new PiecePicker(this);
+        availability.setAvailabilityChangedListener(picker::onAvailabilityChanged);
+        requests = new RequestTable(this);
 
         if (pieceHashes == null) {
             // New torrent
@@ -164,20 +197,44 @@ public class Torrent {
             }
         }
 
-        Object info = torrentInfoToBEncodingObj(this);
-        byte[] bytes;
-        try {
-            bytes = BEncoding.encode(info);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+        if (infoHash == null) {
+            // New torrent, so the info dictionary has to be built first
+            Object info = torrentInfoToBEncodingObj(this);
+            byte[] bytes;
+            try {
+                bytes = BEncoding.encode(info);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            infoHash = sha1.get().digest(bytes);
         }
-        infoHash = sha1.digest(bytes);
+        this.infoHash = infoHash;
 
-        for (int i = 0; i < getPieceCount(); i++) {
-            verify(i);
+        // Existing data that hasn't changed since the last run doesn't need checking again
+        ResumeData resume = pieceHashes != null && storage.isPersistent() ? ResumeData.load(getResumePath()) : null;
+        if (resume != null && resume.matches(this, fileIndex)) {
+            resume.apply(this);
+            System.out.println("Resumed with " + getVerifiedPiecesCount() + " verified pieces");
+        } else {
+            recheck(settings.hashThreads, this::printRecheckProgress);
         }
     }
 
+    // Checks every piece against its hash, blocking until done
+    public void recheck(int threads, EventListeners.RecheckProgressListener listener) {
+        lastRecheckPercent = 0;
+        new PieceChecker(this, threads).checkAll(listener);
+    }
+
+    private int lastRecheckPercent = 0;
+
+    private synchronized void printRecheckProgress(int checked, int total) {
+        int percent = (int) (100L * checked / total);
+        if (percent / 10 == lastRecheckPercent / 10) return;
+        lastRecheckPercent = percent;
+        System.out.println("Checked " + percent + "% of pieces");
+    }
+
     private void handlePeerListUpdated(Object sender, List<InetSocketAddress> endPoints) {
         if (peerListUpdatedListener != null) {
             peerListUpdatedListener.onPeerListUpdated(sender, endPoints);
@@ -189,80 +246,101 @@ public class Torrent {
     //------------------------------------------------------
 
     public byte[] read(long start, int length) {
-        long end = start + length;
         byte[] buffer = new byte[length];
+        if (!read(start, ByteBuffer.wrap(buffer))) return null;
+        return buffer;
+    }
 
-        for (int i = 0; i < files.size(); i++) {
-            if ((start < files.get(i).offset && end < files.get(i).offset) ||
-                (start > files.get(i).offset + files.get(i).size && end > files.get(i).offset + files.get(i).size))
-                continue;
-
-            String filePath = downloadDirectory + File.separatorChar + getFileDirectory() + files.get(i).path;
+    // Fills dst up to its limit, returns false if any of the files haven't been created yet
+    public boolean read(long start, ByteBuffer dst) {
+        return storage.read(start, dst);
+    }
 
-            if (!Files.exists(Path.of(filePath))) return null;
+    public void write(long start, byte[] bytes) {
+        write(start, ByteBuffer.wrap(bytes));
+    }
 
-            long fileStart = Math.max(0, start - files.get(i).offset);
-            long fileEnd = Math.min(end - files.get(i).offset, files.get(i).size);
-            int fileLength = (int) (fileEnd - fileStart);
-            int blockStart = Math.max(0, (int) (files.get(i).offset - start));
+    // Writes src from its position to its limit, src itself is left untouched
+    public void write(long start, ByteBuffer src) {
+        storage.write(start, src);
+    }
 
-            try (RandomAccessFile file = new RandomAccessFile(filePath, "r")) {
-                file.seek(fileStart);
-                file.read(buffer, blockStart, fileLength);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-        }
-        return buffer;
+    public void close() {
+        writeCache.spillAll();
+        saveResumeData();
+        readCache.clear();
+        storage.close();
     }
 
-    public void write(long start, byte[] bytes) {
-        long end = start + bytes.length;
+    //-----------------------------------------------------
+    //                    RESUMING
+    //-----------------------------------------------------
 
-        for (int i = 0; i < files.size(); i++) {
-            if ((start < files.get(i).offset && end < files.get(i).offset) ||
-                (start > files.get(i).offset + files.get(i).size && end > files.get(i).offset + files.get(i).size))
-                continue;
-
-            String filePath = downloadDirectory + File.separatorChar + getFileDirectory() + files.get(i).path;
-
-            Path dir = Path.of(filePath).getParent();
-            if (!Files.exists(dir)) {
-                try {
-                    Files.createDirectories(dir);
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
-            }
+    // Set whenever a block is written, cleared when resume data is saved
+    public volatile boolean isResumeStale = false;
 
-            synchronized (fileWriteLocks[i]) {
-                try (RandomAccessFile file = new RandomAccessFile(filePath, "rw")) {
-                    long fileStart = Math.max(0, start - files.get(i).offset);
-                    long fileEnd = Math.min(end - files.get(i).offset, files.get(i).size);
-                    int fileLength = (int) (fileEnd - fileStart);
-                    int blockStart = Math.max(0, (int) (files.get(i).offset - start));
-
-                    file.seek(fileStart);
-                    file.write(bytes, blockStart, fileLength);
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
-            }
-        }
+    public Path getResumePath() {
+        return Path.of(downloadDirectory, name + ".resume");
+    }
+
+    public void saveResumeData() {
+        if (!storage.isPersistent()) return;
+
+        isResumeStale = false;
+        ResumeData data = ResumeData.capture(this);
+        storage.flush();
+        data.recordFiles(fileIndex);
+        data.save(getResumePath());
     }
 
     public byte[] readPiece(int piece) {
         return read((long) piece * pieceSize, getPieceSize(piece));
     }
 
-    public byte[] readBlock(int piece, int offset, int length) {
-        return read((long) piece * pieceSize + offset, length);
+    // Buffers holding the block that can be sent without copying, or null if the storage can't provide them
+    public ByteBuffer[] mapBlock(int piece, int offset, int length) {
+        return storage.map((long) piece * pieceSize + offset, length);
     }
 
-    public void writeBlock(int piece, int block, byte[] bytes) {
+    // The caller still owns bytes afterwards and is responsible for releasing it
+    public void writeBlock(int piece, int block, ByteBuffer bytes) {
+        // Late duplicates mustn't overwrite data that has already been checked
+        if (isPieceVerified(piece)) return;
+
+        if (writeCache.add(piece, block, bytes)) {
+            acquiredBlocks.set(getBlockIndex(piece, block));
+            isResumeStale = true;
+            if (isPieceAcquired(piece)) flushPiece(piece);
+            return;
+        }
+
         write((long) piece * pieceSize + (long) block * blockSize, bytes);
-        isBlockAcquired[piece][block] = true;
-        verify(piece);
+        acquiredBlocks.set(getBlockIndex(piece, block));
+        isResumeStale = true;
+
+        // Blocks are hashed as they arrive, so the piece is only read back if the hasher missed some
+        byte[] hash = hasher.add(piece, block, bytes);
+        if (hash != null) {
+            verify(piece, hash);
+        } else if (isPieceAcquired(piece)) {
+            hasher.reset(piece);
+            verify(piece);
+        }
+    }
+
+    // Hashes a complete piece from the cache and only writes it if it's valid
+    private void flushPiece(int piece) {
+        ByteBuffer buffer = writeCache.remove(piece);
+
+        MessageDigest digest = sha1.get();
+        digest.update(buffer.duplicate());
+        byte[] hash = digest.digest();
+
+        boolean isValid = Arrays.equals(hash, pieceHashes[piece]);
+        if (isValid) write((long) piece * pieceSize, buffer.duplicate());
+        writeCache.recycle(buffer, isValid);
+
+        verify(piece, hash);
     }
 
     //-----------------------------------------------------
@@ -276,14 +354,20 @@ public class Torrent {
     }
 
     public void verify(int piece) {
-        byte[] hash = getHash(piece);
+        verify(piece, getHash(piece));
+    }
 
+    private void verify(int piece, byte[] hash) {
         boolean isVerified = (hash != null && Arrays.equals(hash, pieceHashes[piece]));
 
+        int firstBlock = getBlockIndex(piece, 0);
+        int lastBlock = firstBlock + getBlockCount(piece);
+
         if (isVerified) {
-            isPieceVerified[piece] = true;
+            verifiedPieces.set(piece);
+            picker.setNeeded(piece, false);
 
-            Arrays.fill(isBlockAcquired[piece], true);
+            acquiredBlocks.set(firstBlock, lastBlock);
 
             if (pieceVerifiedListener != null) {
                 pieceVerifiedListener.onPieceVerified(piece);
@@ -292,32 +376,46 @@ public class Torrent {
             return;
         }
 
-        isPieceVerified[piece] = false;
+        verifiedPieces.clear(piece);
+        picker.setNeeded(piece, true);
 
-        if (Arrays.stream(isBlockAcquired[piece]).allMatch(x -> x != null && x)) {
-            Arrays.fill(isBlockAcquired[piece], false);
+        if (isPieceAcquired(piece)) {
+            acquiredBlocks.clear(firstBlock, lastBlock);
+            picker.clearPartial(piece);
         }
     }
 
     public byte[] getHash(int piece) {
-        byte[] data = readPiece(piece);
-
-        if (data == null) return null;
-        return sha1.digest(data);
+        MessageDigest digest = sha1.get();
+        if (!storage.hash((long) piece * pieceSize, getPieceSize(piece), digest)) {
+            digest.reset();
+            return null;
+        }
+        return digest.digest();
     }
 
     //----------------------------------------------------
     //             IMPORTING AND EXPORTING
     //----------------------------------------------------
 
+    // Index the raw file and only decode the fields that are needed
     public static Torrent loadFromFile(String filePath, String downloadPath) {
-        Object obj = BEncoding.decodeFile(filePath);
+        return loadFromFile(filePath, downloadPath, new Settings());
+    }
+
+    public static Torrent loadFromFile(String filePath, String downloadPath, Settings settings) {
         Path path = Path.of(filePath);
+        BEncodingTape tape;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            tape = new BEncodingTape(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
         String name = path.getFileName().toString();
         int ext = name.lastIndexOf(".");
         String nameWithoutExt = name.substring(0, ext);
 
-        return BEncodingObjToTorrent(obj, name, downloadPath);
+        return BEncodingTapeToTorrent(tape.root(), name, downloadPath, settings);
     }
 
     public static void saveToFile(Torrent torrent) {
@@ -412,6 +510,14 @@ public class Torrent {
         TreeMap<String, Object> info = (TreeMap<String, Object>) obj.get("info");
         if (info == null) throw new RuntimeException("Error with torrent info");
 
+        // Hash the info dictionary as decoded, so keys this client doesn't use are still included
+        byte[] infoHash;
+        try {
+            infoHash = sha1.get().digest(BEncoding.encode(info));
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+
         List<FileItem> files = new ArrayList<>();
         if (info.containsKey("name") && info.containsKey("length")) {
             files.add(new FileItem(
@@ -429,11 +535,10 @@ public class Torrent {
 
                 List<Object> pathList = (List<Object>) dict.get("path");
 
-                String path = String.join(File.separator, pathList
+                String path = pathList
                         .stream()
                         .map(x -> decodeUTF8Str((byte[]) x))
-                        .collect(Collectors.joining())
-                );
+                        .collect(Collectors.joining(File.separator));
 
                 long size = (long) dict.get("length");
 
@@ -464,7 +569,9 @@ public class Torrent {
                 pieceSize,
                 pieceHashes,
                 16384,
-                isPrivate
+                isPrivate,
+                infoHash,
+                new Settings()
         );
 
         if (obj.containsKey("comment"))
@@ -482,6 +589,86 @@ public class Torrent {
         return torrent;
     }
 
+    public static Torrent BEncodingTapeToTorrent(BEncodingTape.Node root, String name, String downloadPath,
+                                                 Settings settings) {
+        if (root == null || root.getType() != BEncodingTape.Type.dict) throw new RuntimeException("Not a torrent file");
+
+        List<String> trackers = new ArrayList<>();
+        if (root.containsKey("announce")) trackers.add(root.get("announce").asString());
+
+        BEncodingTape.Node info = root.get("info");
+        if (info == null) throw new RuntimeException("Missing torrent info");
+        if (info.getType() != BEncodingTape.Type.dict) throw new RuntimeException("Error with torrent info");
+
+        // Hash the exact bytes of the info dictionary as they appear in the file
+        MessageDigest digest = sha1.get();
+        digest.update(info.raw());
+        byte[] infoHash = digest.digest();
+
+        List<FileItem> files = new ArrayList<>();
+        BEncodingTape.Node fileList = info.get("files");
+        if (info.containsKey("name") && info.containsKey("length")) {
+            files.add(new FileItem(info.get("name").asString(), info.get("length").asLong()));
+        } else if (fileList != null) {
+            long running = 0;
+
+            for (BEncodingTape.Node dict : fileList.list()) {
+                if (dict.getType() != BEncodingTape.Type.dict || !dict.containsKey("path") || !dict.containsKey("length"))
+                    throw new RuntimeException("Incorrect file specification");
+
+                String path = dict.get("path").list()
+                        .stream()
+                        .map(BEncodingTape.Node::asString)
+                        .collect(Collectors.joining(File.separator));
+
+                long size = dict.get("length").asLong();
+
+                files.add(new FileItem(path, size, running));
+
+                running += size;
+            }
+        } else {
+            throw new RuntimeException("No files in torrent");
+        }
+
+        if (!info.containsKey("piece length")) throw new RuntimeException("Error with piece length");
+        int pieceSize = (int) info.get("piece length").asLong();
+
+        if (!info.containsKey("pieces")) throw new RuntimeException("Error with pieces");
+        byte[] pieceHashes = info.get("pieces").asBytes();
+
+        Boolean isPrivate = null;
+        if (info.containsKey("private"))
+            isPrivate = info.get("private").asLong() == 1L;
+
+        Torrent torrent = new Torrent(
+                name,
+                downloadPath,
+                files,
+                trackers,
+                pieceSize,
+                pieceHashes,
+                16384,
+                isPrivate,
+                infoHash,
+                settings
+        );
+
+        if (root.containsKey("comment"))
+            torrent.comment = root.get("comment").asString();
+
+        if (root.containsKey("created by"))
+            torrent.createdBy = root.get("created by").asString();
+
+        if (root.containsKey("creation date"))
+            torrent.creationDate = unixTimestampToZonedDateTime(root.get("creation date").asLong());
+
+        if (root.containsKey("encoding"))
+            torrent.encoding = Charset.forName(root.get("encoding").asString());
+
+        return torrent;
+    }
+
     public void updateTrackers(Tracker.TrackerEvent ev, String id, int port) {
         for (Tracker tracker : trackers) {
             //System.out.println("updating tracker: " + tracker.address);
@@ -107,19 +107,14 @@ public class Tracker {
 
         bytes = response.body();
         System.out.println("received bytes: " + bytes.length);
-        List<Byte> byteList = new ArrayList<>();
-        for (byte b : bytes) {
-            byteList.add(b);
-        }
-        //System.out.println("converted to list");
 
         Map<String, Object> info = null;
         try {
             //noinspection unchecked
-            info = (Map<String, Object>) BEncoding.decode(byteList);
+            info = (Map<String, Object>) BEncoding.decode(bytes, BEncoding.TRACKER_LIMITS);
             //System.out.println("decoded info: " + info);
         } catch (Exception e) {
-            System.out.println("failed to decode byte list: " + e.getMessage());
+            System.out.println("failed to decode tracker response: " + e.getMessage());
         }
 
         if (info == null) {
@@ -0,0 +1,23 @@
+import java.io.IOException;
+
+/*
+Network layer used by the client for all peer connections.
+Implementations are chosen at startup with Settings.transport.
+ */
+public interface Transport {
+    void listen(int port, EventListeners.ConnectionAcceptedListener listener) throws IOException;
+
+    void stopListening() throws IOException;
+
+    // Open an outgoing connection, then call peer.onConnected() or peer.disconnect() if it fails
+    void connect(Peer peer);
+
+    static Transport create(Settings settings) {
+        return switch (settings.transport) {
+            case "async" -> new AsyncTransport();
+            case "selector" -> new SelectorTransport(settings.eventLoops);
+            case "blocking" -> new BlockingTransport(settings.blockingThreads);
+            default -> throw new IllegalArgumentException("Unknown transport " + settings.transport);
+        };
+    }
+}
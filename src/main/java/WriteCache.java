@@ -0,0 +1,142 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+Write-back cache that keeps downloading pieces in memory until every block has arrived.
+Each piece gets one contiguous buffer that its blocks are copied into, so a complete piece can
+be hashed from memory and then written with a single sequential write, and a piece that fails
+verification never reaches storage at all. Once the budget is used up the least recently
+written piece is spilled, its blocks go to storage and the hasher, and it carries on uncached.
+ */
+public class WriteCache {
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    private final Torrent torrent;
+    private final long maxBytes;
+    private final LinkedHashMap<Integer, ByteBuffer> pieces = new LinkedHashMap<>(16, 0.75f, true);
+    private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+    private long allocatedBytes = 0;
+
+    private long flushed = 0;
+    private long spilled = 0;
+    private long discarded = 0;
+
+    public WriteCache(Torrent torrent, long maxBytes) {
+        this.torrent = torrent;
+        this.maxBytes = maxBytes;
+    }
+
+    /*
+    Copies the block into the piece's buffer, data itself is left untouched.
+    Returns false if the block has to be written directly instead, because the budget can't hold
+    a single piece or the piece already had blocks before it could be cached.
+     */
+    public synchronized boolean add(int piece, int block, ByteBuffer data) {
+        ByteBuffer buffer = pieces.get(piece);
+        if (buffer == null) {
+            if (torrent.getAcquiredBlockCount(piece) > 0) return false;
+            buffer = acquire();
+            if (buffer == null) return false;
+            buffer.clear().limit(torrent.getPieceSize(piece));
+            pieces.put(piece, buffer);
+        }
+
+        buffer.put(block * torrent.blockSize, data, data.position(), data.remaining());
+        return true;
+    }
+
+    public synchronized boolean contains(int piece) {
+        return pieces.containsKey(piece);
+    }
+
+    // Takes a complete piece out of the cache, it should be handed back with recycle() once written
+    public synchronized ByteBuffer remove(int piece) {
+        return pieces.remove(piece);
+    }
+
+    public synchronized void recycle(ByteBuffer buffer, boolean isWritten) {
+        if (isWritten) flushed++;
+        else discarded++;
+        free.push(buffer);
+    }
+
+    // Every buffer has room for a full piece, so any of them can be reused for any piece
+    private ByteBuffer acquire() {
+        if (!free.isEmpty()) return free.pop();
+
+        while (allocatedBytes + torrent.pieceSize > maxBytes) {
+            if (pieces.isEmpty()) return null;
+            spillOldest();
+            if (!free.isEmpty()) return free.pop();
+        }
+
+        allocatedBytes += torrent.pieceSize;
+        return ByteBuffer.allocateDirect(torrent.pieceSize);
+    }
+
+    private void spillOldest() {
+        Iterator<Map.Entry<Integer, ByteBuffer>> iterator = pieces.entrySet().iterator();
+        Map.Entry<Integer, ByteBuffer> oldest = iterator.next();
+        iterator.remove();
+        spill(oldest.getKey(), oldest.getValue());
+        free.push(oldest.getValue());
+    }
+
+    // Writes each run of consecutive blocks in one go and feeds them to the hasher in order
+    private void spill(int piece, ByteBuffer buffer) {
+        int blockCount = torrent.getBlockCount(piece);
+        long pieceStart = (long) piece * torrent.pieceSize;
+        torrent.hasher.track(piece);
+
+        int block = 0;
+        while (block < blockCount) {
+            if (!torrent.isBlockAcquired(piece, block)) {
+                block++;
+                continue;
+            }
+
+            int first = block;
+            while (block < blockCount && torrent.isBlockAcquired(piece, block)) block++;
+
+            int from = first * torrent.blockSize;
+            int to = Math.min(block * torrent.blockSize, buffer.limit());
+            torrent.write(pieceStart + from, buffer.slice(from, to - from));
+
+            for (int i = first; i < block; i++) {
+                int offset = i * torrent.blockSize;
+                torrent.hasher.add(piece, i, buffer.slice(offset, torrent.getBlockSize(piece, i)));
+            }
+        }
+        spilled++;
+    }
+
+    // Writes out every partial piece, e.g. before saving resume data on shutdown
+    public synchronized void spillAll() {
+        while (!pieces.isEmpty()) {
+            spillOldest();
+        }
+    }
+
+    public synchronized int getCachedPieceCount() {
+        return pieces.size();
+    }
+
+    public synchronized long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    public synchronized long getFlushedCount() {
+        return flushed;
+    }
+
+    public synchronized long getSpilledCount() {
+        return spilled;
+    }
+
+    public synchronized long getDiscardedCount() {
+        return discarded;
+    }
+}
@@ -0,0 +1,84 @@
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BEncodingTapeTest {
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static final String[] VALID = {
+            "i0e",
+            "i-42e",
+            "i9223372036854775807e",
+            "0:",
+            "4:spam",
+            "le",
+            "de",
+            "li1e4:spamli2eee",
+            "d1:ai1e1:bl3:xyzi-3ee2:éd0:0:ee",
+            "d4:infod6:lengthi123e4:name4:file12:piece lengthi16384eee",
+    };
+
+    private static final String[] MALFORMED = {
+            "ie", "i-e", "i-0e", "i03e", "i1x2e", "i12", "i9223372036854775808e",
+            "-5:abcde", "05:abcde", "4:abc", ":abc",
+            "l", "li1e", "d1:ae", "di1ei2ee", "x", "",
+    };
+
+    @Test
+    public void materializesLikeTheDecoder() throws Exception {
+        for (String input : VALID) {
+            Object decoded = BEncoding.decode(bytes(input));
+            Object materialized = new BEncodingTape(bytes(input)).root().materialize();
+            assertArrayEquals(BEncoding.encode(decoded), BEncoding.encode(materialized), input);
+        }
+    }
+
+    @Test
+    public void rejectsWhatTheDecoderRejects() {
+        for (String input : MALFORMED) {
+            assertThrows(RuntimeException.class, () -> BEncoding.decode(bytes(input)), input);
+            assertThrows(RuntimeException.class, () -> new BEncodingTape(bytes(input)), input);
+        }
+    }
+
+    @Test
+    public void readsNumbersAndStrings() {
+        assertEquals(-42L, new BEncodingTape(bytes("i-42e")).root().asLong());
+        assertEquals(0L, new BEncodingTape(bytes("i0e")).root().asLong());
+        assertEquals(Long.MAX_VALUE, new BEncodingTape(bytes("i9223372036854775807e")).root().asLong());
+        assertEquals("spam", new BEncodingTape(bytes("4:spam")).root().asString());
+        assertEquals(ByteBuffer.wrap(bytes("spam")), new BEncodingTape(bytes("4:spam")).root().content());
+    }
+
+    @Test
+    public void looksUpKeysAndListItems() {
+        BEncodingTape.Node root = new BEncodingTape(bytes("d1:ali1ei2ee1:bd1:ci3eee")).root();
+        List<BEncodingTape.Node> list = root.get("a").list();
+        assertEquals(2, list.size());
+        assertEquals(2L, list.get(1).asLong());
+        assertEquals(3L, root.get("b").get("c").asLong());
+        assertNull(root.get("c"));
+        assertFalse(root.containsKey("ab"));
+    }
+
+    @Test
+    public void slicesTheRawBytesOfAValue() {
+        String info = "d6:lengthi123e4:name4:filee";
+        BEncodingTape.Node root = new BEncodingTape(bytes("d8:announce3:url4:info" + info + "e")).root();
+        assertEquals(ByteBuffer.wrap(bytes(info)), root.get("info").raw());
+    }
+
+    @Test
+    public void rejectsAccessAsTheWrongType() {
+        BEncodingTape.Node root = new BEncodingTape(bytes("4:spam")).root();
+        assertThrows(RuntimeException.class, root::asLong);
+        assertThrows(RuntimeException.class, root::list);
+    }
+}
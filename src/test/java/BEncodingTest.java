@@ -0,0 +1,92 @@
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BEncodingTest {
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void decodesNumbers() {
+        assertEquals(42L, BEncoding.decode(bytes("i42e")));
+        assertEquals(-42L, BEncoding.decode(bytes("i-42e")));
+        assertEquals(0L, BEncoding.decode(bytes("i0e")));
+        assertEquals(Long.MAX_VALUE, BEncoding.decode(bytes("i9223372036854775807e")));
+    }
+
+    @Test
+    public void decodesByteStrings() {
+        assertArrayEquals(bytes("spam"), (byte[]) BEncoding.decode(bytes("4:spam")));
+        assertArrayEquals(new byte[0], (byte[]) BEncoding.decode(bytes("0:")));
+    }
+
+    @Test
+    public void decodesNestedContainers() {
+        Object decoded = BEncoding.decode(bytes("d4:listli1ei2ee3:numi7ee"));
+        Map<?, ?> dict = (Map<?, ?>) decoded;
+        assertEquals(List.of(1L, 2L), dict.get("list"));
+        assertEquals(7L, dict.get("num"));
+    }
+
+    @Test
+    public void decodesFromBufferPositionToLimit() {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes("xxi5eyy"));
+        buffer.position(2).limit(5);
+        assertEquals(5L, BEncoding.decode(buffer));
+        assertEquals(2, buffer.position());
+    }
+
+    @Test
+    public void rejectsMalformedNumbers() {
+        for (String input : new String[] {"ie", "i-e", "i-0e", "i03e", "i1x2e", "i12", "i9223372036854775808e"}) {
+            assertThrows(RuntimeException.class, () -> BEncoding.decode(bytes(input)), input);
+        }
+    }
+
+    @Test
+    public void rejectsMalformedByteStrings() {
+        for (String input : new String[] {"-5:abcde", "05:abcde", "4:abc", ":abc", "5"}) {
+            assertThrows(RuntimeException.class, () -> BEncoding.decode(bytes(input)), input);
+        }
+    }
+
+    @Test
+    public void rejectsMalformedContainers() {
+        for (String input : new String[] {"l", "li1e", "d1:ae", "di1ei2ee", "x"}) {
+            assertThrows(RuntimeException.class, () -> BEncoding.decode(bytes(input)), input);
+        }
+    }
+
+    @Test
+    public void appliesLimits() {
+        BEncoding.Limits limits = new BEncoding.Limits(2, 3, 4);
+        assertThrows(RuntimeException.class, () -> BEncoding.decode(bytes("llleee"), limits));
+        assertThrows(RuntimeException.class, () -> BEncoding.decode(bytes("4:spam"), limits));
+        assertThrows(RuntimeException.class, () -> BEncoding.decode(bytes("li1ei2ei3ei4ee"), limits));
+        assertEquals(List.of(1L, 2L, 3L), BEncoding.decode(bytes("li1ei2ei3ee"), limits));
+    }
+
+    @Test
+    public void encodesKeysInRawByteOrder() throws Exception {
+        Map<String, Object> dict = new TreeMap<>();
+        dict.put("b", 1L);
+        dict.put("a", 2L);
+        dict.put("é", 3L);
+        dict.put("z", 4L);
+        assertEquals("d1:ai2e1:bi1e1:zi4e2:éi3ee", new String(BEncoding.encode(dict), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void roundTripsDecodedDictionaries() throws Exception {
+        byte[] input = bytes("d1:ai1e1:bl3:xyzi-3ee2:éd0:0:ee");
+        assertArrayEquals(input, BEncoding.encode(BEncoding.decode(input)));
+    }
+}
@@ -0,0 +1,111 @@
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BitfieldTest {
+
+    @Test
+    public void firstPieceIsTheHighestBitOfTheFirstByte() {
+        Bitfield bitfield = new Bitfield(16);
+        bitfield.set(0);
+        bitfield.set(9);
+        bitfield.set(15);
+        assertArrayEquals(new byte[] {(byte) 0x80, (byte) 0x41}, bitfield.toBytes());
+    }
+
+    @Test
+    public void spareBitsInTheLastByteAreWrittenAsZero() {
+        Bitfield bitfield = new Bitfield(10);
+        bitfield.set(0, 10);
+        assertEquals(2, bitfield.getByteLength());
+        assertArrayEquals(new byte[] {(byte) 0xFF, (byte) 0xC0}, bitfield.toBytes());
+    }
+
+    @Test
+    public void spareBitsSetByAPeerAreIgnored() {
+        Bitfield bitfield = Bitfield.fromBytes(new byte[] {(byte) 0xFF, (byte) 0xFF}, 10);
+        assertEquals(10, bitfield.count());
+        assertTrue(bitfield.isAll());
+        assertEquals(-1, bitfield.nextSet(10));
+        assertArrayEquals(new byte[] {(byte) 0xFF, (byte) 0xC0}, bitfield.toBytes());
+    }
+
+    @Test
+    public void spareBitsPastAWordBoundaryAreIgnored() {
+        byte[] bytes = new byte[9];
+        Arrays.fill(bytes, (byte) 0xFF);
+        Bitfield bitfield = Bitfield.fromBytes(bytes, 65);
+        assertEquals(65, bitfield.count());
+        assertArrayEquals(new byte[] {-1, -1, -1, -1, -1, -1, -1, -1, (byte) 0x80}, bitfield.toBytes());
+    }
+
+    @Test
+    public void roundTripsThroughTheWireFormat() {
+        Random random = new Random(1);
+        for (int size : new int[] {1, 7, 8, 9, 63, 64, 65, 127, 128, 1000}) {
+            Bitfield bitfield = new Bitfield(size);
+            for (int i = 0; i < size; i++) {
+                if (random.nextBoolean()) bitfield.set(i);
+            }
+
+            Bitfield decoded = Bitfield.fromBytes(bitfield.toBytes(), size);
+            assertEquals(bitfield.toString(), decoded.toString(), "size " + size);
+            assertEquals(bitfield.count(), decoded.count(), "size " + size);
+        }
+    }
+
+    @Test
+    public void readsFromAnOffsetInABuffer() {
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[] {0x11, 0x22, (byte) 0xA0, 0x33});
+        Bitfield bitfield = Bitfield.fromBytes(buffer, 2, 4);
+        assertEquals("1010", bitfield.toString());
+    }
+
+    @Test
+    public void keepsTheCountAsBitsChange() {
+        Bitfield bitfield = new Bitfield(130);
+        assertTrue(bitfield.set(5));
+        assertFalse(bitfield.set(5));
+        bitfield.set(60, 70);
+        assertEquals(11, bitfield.count());
+        assertEquals(10, bitfield.count(60, 130));
+        assertTrue(bitfield.clear(5));
+        assertFalse(bitfield.clear(5));
+        bitfield.clear(62, 130);
+        assertEquals(2, bitfield.count());
+        assertTrue(bitfield.get(61));
+        assertFalse(bitfield.get(62));
+    }
+
+    @Test
+    public void findsTheNextSetAndClearBits() {
+        Bitfield bitfield = new Bitfield(200);
+        bitfield.set(3);
+        bitfield.set(130);
+        assertEquals(3, bitfield.nextSet(0));
+        assertEquals(130, bitfield.nextSet(4));
+        assertEquals(-1, bitfield.nextSet(131));
+        assertEquals(4, bitfield.nextClear(3));
+
+        bitfield.set(0, 200);
+        assertEquals(-1, bitfield.nextClear(0));
+    }
+
+    @Test
+    public void combinesWithOtherBitfields() {
+        Bitfield a = new Bitfield(100);
+        Bitfield b = new Bitfield(100);
+        a.set(1);
+        a.set(70);
+        b.set(70);
+        b.set(99);
+        assertEquals(1, a.countAndNot(b));
+        a.or(b);
+        assertEquals(3, a.count());
+        assertTrue(a.get(99));
+    }
+}
@@ -0,0 +1,138 @@
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MessageFramerTest {
+
+    private static byte[] frame(int id, int payloadLength) {
+        ByteBuffer frame = ByteBuffer.allocate(5 + payloadLength);
+        frame.putInt(1 + payloadLength).put((byte) id);
+        for (int i = 0; i < payloadLength; i++) frame.put((byte) (id + i));
+        return frame.array();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) length += part.length;
+        ByteBuffer all = ByteBuffer.allocate(length);
+        for (byte[] part : parts) all.put(part);
+        return all.array();
+    }
+
+    // Simulates a socket read of the bytes
+    private static void read(MessageFramer framer, byte[] bytes, int from, int to) {
+        ByteBuffer buffer = framer.writable();
+        buffer.put(bytes, from, to - from);
+        framer.onRead(to - from);
+    }
+
+    private static List<byte[]> drain(MessageFramer framer) {
+        List<byte[]> messages = new ArrayList<>();
+        ByteBuffer message;
+        while ((message = framer.next(false)) != null) {
+            byte[] bytes = new byte[message.remaining()];
+            message.get(bytes);
+            messages.add(bytes);
+        }
+        return messages;
+    }
+
+    @Test
+    public void splitsSeveralFramesInOneRead() {
+        byte[] a = frame(1, 0);
+        byte[] b = frame(2, 13);
+        byte[] keepalive = {0, 0, 0, 0};
+        byte[] all = concat(a, keepalive, b);
+
+        MessageFramer framer = new MessageFramer(1 << 20);
+        read(framer, all, 0, all.length);
+        List<byte[]> messages = drain(framer);
+
+        assertEquals(3, messages.size());
+        assertArrayEquals(a, messages.get(0));
+        assertArrayEquals(keepalive, messages.get(1));
+        assertArrayEquals(b, messages.get(2));
+        assertEquals(0, framer.buffered());
+    }
+
+    @Test
+    public void reassemblesFramesSplitAcrossReads() {
+        byte[] a = frame(3, 100);
+        byte[] b = frame(4, 7);
+        byte[] all = concat(a, b);
+
+        // Every split point, including inside the length prefix
+        for (int split = 1; split < all.length; split++) {
+            MessageFramer framer = new MessageFramer(1 << 20);
+            List<byte[]> messages = new ArrayList<>();
+
+            read(framer, all, 0, split);
+            messages.addAll(drain(framer));
+            read(framer, all, split, all.length);
+            messages.addAll(drain(framer));
+
+            assertEquals(2, messages.size(), "split at " + split);
+            assertArrayEquals(a, messages.get(0), "split at " + split);
+            assertArrayEquals(b, messages.get(1), "split at " + split);
+        }
+    }
+
+    @Test
+    public void reassemblesAFrameDeliveredAByteAtATime() {
+        byte[] a = frame(5, 40);
+        MessageFramer framer = new MessageFramer(1 << 20);
+        for (int i = 0; i < a.length - 1; i++) {
+            read(framer, a, i, i + 1);
+            assertNull(framer.next(false));
+        }
+        read(framer, a, a.length - 1, a.length);
+        assertArrayEquals(a, drain(framer).get(0));
+    }
+
+    @Test
+    public void growsForAFrameLargerThanTheBuffer() {
+        byte[] big = frame(6, MessageFramer.MIN_CAPACITY * 3);
+        MessageFramer framer = new MessageFramer(1 << 20);
+
+        List<byte[]> messages = new ArrayList<>();
+        int position = 0;
+        while (position < big.length) {
+            int chunk = Math.min(big.length - position, framer.writable().remaining());
+            read(framer, big, position, position + chunk);
+            position += chunk;
+            messages.addAll(drain(framer));
+        }
+
+        assertEquals(1, messages.size());
+        assertArrayEquals(big, messages.get(0));
+        assertTrue(framer.capacity() >= big.length);
+    }
+
+    @Test
+    public void framesTheHandshakeByItsFixedLength() {
+        byte[] handshake = new byte[MessageFramer.HANDSHAKE_LENGTH];
+        Arrays.fill(handshake, (byte) 19);
+        byte[] bitfield = frame(5, 2);
+        byte[] all = concat(handshake, bitfield);
+
+        MessageFramer framer = new MessageFramer(1 << 20);
+        read(framer, all, 0, all.length);
+
+        ByteBuffer first = framer.next(true);
+        assertEquals(MessageFramer.HANDSHAKE_LENGTH, first.remaining());
+        assertArrayEquals(bitfield, drain(framer).get(0));
+    }
+
+    @Test
+    public void rejectsOversizedLengths() {
+        MessageFramer framer = new MessageFramer(1024);
+        byte[] header = ByteBuffer.allocate(4).putInt(2048).array();
+        read(framer, header, 0, header.length);
+        assertThrows(IllegalStateException.class, () -> framer.next(false));
+    }
+}
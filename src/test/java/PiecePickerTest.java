@@ -0,0 +1,189 @@
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PiecePickerTest {
+
+    private static final int PIECE_SIZE = 16384;
+
+    // A torrent in memory with nothing verified, so every piece starts out needed
+    private static Torrent torrent(int pieceCount) throws Exception {
+        Settings settings = new Settings();
+        settings.storage = "memory";
+        settings.hashThreads = 1;
+        String directory = Files.createTempDirectory("picker").toString();
+        List<FileItem> files = List.of(new FileItem("f", (long) pieceCount * PIECE_SIZE));
+        return new Torrent("x", directory, files, new ArrayList<>(), PIECE_SIZE,
+                new byte[pieceCount * 20], PIECE_SIZE, false, null, settings);
+    }
+
+    private static void setAvailability(Torrent torrent, int piece, int level) {
+        for (int i = 0; i < level; i++) torrent.availability.increment(piece);
+    }
+
+    private static Bitfield peerWith(int pieceCount, int... pieces) {
+        Bitfield bitfield = new Bitfield(pieceCount);
+        for (int piece : pieces) bitfield.set(piece);
+        return bitfield;
+    }
+
+    private static Bitfield peerWithAll(int pieceCount) {
+        Bitfield bitfield = new Bitfield(pieceCount);
+        bitfield.set(0, pieceCount);
+        return bitfield;
+    }
+
+    @Test
+    public void picksTheRarestPiecesFirst() throws Exception {
+        Torrent torrent = torrent(8);
+        for (int i = 0; i < 8; i++) setAvailability(torrent, i, 3);
+        torrent.availability.decrement(5);
+        torrent.availability.decrement(5);
+        torrent.availability.increment(2);
+
+        PiecePicker picker = torrent.picker;
+        assertEquals(8, picker.getNeededCount());
+        assertArrayEquals(new int[] {5}, picker.pick(peerWithAll(8), 1));
+        assertArrayEquals(new int[] {2}, picker.pick(peerWith(8, 2), 4));
+    }
+
+    @Test
+    public void skipsPiecesNobodyHas() throws Exception {
+        Torrent torrent = torrent(4);
+        setAvailability(torrent, 1, 1);
+        assertArrayEquals(new int[] {1}, torrent.picker.pick(peerWithAll(4), 4));
+    }
+
+    @Test
+    public void picksPartialPiecesBeforeRarerOnes() throws Exception {
+        Torrent torrent = torrent(8);
+        for (int i = 0; i < 8; i++) setAvailability(torrent, i, i == 0 ? 1 : 4);
+        PiecePicker picker = torrent.picker;
+
+        picker.markPartial(6);
+        assertEquals(1, picker.getPartialCount());
+        assertArrayEquals(new int[] {6, 0}, picker.pick(peerWithAll(8), 2));
+
+        // Availability changes don't move a partial piece back into a bucket
+        torrent.availability.increment(6);
+        assertEquals(1, picker.getPartialCount());
+        assertEquals(8, picker.getNeededCount());
+    }
+
+    @Test
+    public void fullyRequestedPiecesComeBackWhenARequestIsDropped() throws Exception {
+        Torrent torrent = torrent(4);
+        for (int i = 0; i < 4; i++) setAvailability(torrent, i, 1);
+        PiecePicker picker = torrent.picker;
+
+        picker.markPartial(2);
+        picker.markFullyRequested(2, picker.getDropCount(2));
+        assertEquals(0, picker.getPartialCount());
+        assertEquals(1, picker.getFullyRequestedCount());
+        assertEquals(4, picker.getNeededCount());
+        assertArrayEquals(new int[0], picker.pick(peerWith(4, 2), 4));
+        assertArrayEquals(new int[] {2}, picker.pickFullyRequested(peerWithAll(4), 4));
+
+        // Still has blocks, so it goes back to the partial list
+        picker.onRequestDropped(2);
+        assertEquals(0, picker.getFullyRequestedCount());
+        assertEquals(1, picker.getPartialCount());
+        assertArrayEquals(new int[] {2}, picker.pick(peerWith(4, 2), 4));
+    }
+
+    @Test
+    public void aStaleLookDoesNotMarkAPieceFullyRequested() throws Exception {
+        Torrent torrent = torrent(4);
+        for (int i = 0; i < 4; i++) setAvailability(torrent, i, 1);
+        PiecePicker picker = torrent.picker;
+
+        int dropCount = picker.getDropCount(1);
+        picker.onRequestDropped(1);
+        picker.markFullyRequested(1, dropCount);
+        assertEquals(0, picker.getFullyRequestedCount());
+        assertArrayEquals(new int[] {1}, picker.pick(peerWith(4, 1), 4));
+
+        picker.markFullyRequested(1, picker.getDropCount(1));
+        assertEquals(1, picker.getFullyRequestedCount());
+    }
+
+    @Test
+    public void clearingAPartialPiecePutsItBackInItsBucket() throws Exception {
+        Torrent torrent = torrent(4);
+        for (int i = 0; i < 4; i++) setAvailability(torrent, i, 1);
+        PiecePicker picker = torrent.picker;
+
+        picker.markPartial(3);
+        int dropCount = picker.getDropCount(3);
+        picker.markFullyRequested(3, dropCount);
+
+        picker.clearPartial(3);
+        assertEquals(0, picker.getPartialCount());
+        assertEquals(0, picker.getFullyRequestedCount());
+        assertEquals(4, picker.getNeededCount());
+        assertEquals(dropCount + 1, picker.getDropCount(3));
+
+        // A look from before the blocks were lost can't mark it again
+        picker.markFullyRequested(3, dropCount);
+        assertEquals(0, picker.getFullyRequestedCount());
+        assertArrayEquals(new int[] {3}, picker.pick(peerWith(4, 3), 4));
+    }
+
+    @Test
+    public void piecesThatAreNoLongerNeededAreNeverPicked() throws Exception {
+        Torrent torrent = torrent(4);
+        for (int i = 0; i < 4; i++) setAvailability(torrent, i, 1);
+        PiecePicker picker = torrent.picker;
+
+        picker.markPartial(0);
+        picker.setNeeded(0, false);
+        picker.setNeeded(1, false);
+        assertEquals(2, picker.getNeededCount());
+        assertEquals(0, picker.getPartialCount());
+        assertArrayEquals(new int[0], picker.pick(peerWith(4, 0, 1), 4));
+
+        // A piece found bad later comes back untouched, in the bucket for its availability
+        torrent.availability.increment(0);
+        picker.setNeeded(0, true);
+        assertEquals(3, picker.getNeededCount());
+        assertEquals(0, picker.getPartialCount());
+        assertArrayEquals(new int[] {0}, picker.pick(peerWith(4, 0, 1), 4));
+    }
+
+    @Test
+    public void excludedPiecesAreSkipped() throws Exception {
+        Torrent torrent = torrent(4);
+        for (int i = 0; i < 4; i++) setAvailability(torrent, i, 1);
+        int[] picked = torrent.picker.pick(peerWith(4, 1, 2), 4, Set.of(1));
+        assertArrayEquals(new int[] {2}, picked);
+    }
+
+    @Test
+    public void fallsBackToThePeersPiecesOnceProbesRunOut() throws Exception {
+        int pieceCount = 2000;
+        Torrent torrent = torrent(pieceCount);
+        PiecePicker picker = torrent.picker;
+
+        // The common pieces fill the first bucket, so the probes never reach the peer's pieces
+        for (int i = 0; i < pieceCount; i++) setAvailability(torrent, i, 1);
+        setAvailability(torrent, 10, 4);
+        setAvailability(torrent, 1500, 2);
+        setAvailability(torrent, 700, 4);
+        setAvailability(torrent, 900, 4);
+        picker.markPartial(700);
+        picker.markFullyRequested(700, picker.getDropCount(700));
+        picker.setNeeded(900, false);
+
+        Bitfield peerPieces = peerWith(pieceCount, 10, 1500, 700, 900);
+        for (int i = 0; i < 20; i++) {
+            // Rarest first, without the fully requested and verified ones
+            assertArrayEquals(new int[] {1500, 10}, picker.pick(peerPieces, 4));
+            assertArrayEquals(new int[] {10}, picker.pick(peerPieces, 4, Set.of(1500)));
+        }
+    }
+}